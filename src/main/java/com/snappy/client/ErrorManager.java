@@ -3,7 +3,7 @@ package com.snappy.client;
 /*
  * This class is responsible for the management of the errors.
  * It can print the stack trace of an exception if the debug mode is enabled.
- * It can also print a custom message and exit the application.
+ * It can also print a custom message and exit the application, or just report it and keep going.
  */
 public class ErrorManager {
     
@@ -16,4 +16,12 @@ public class ErrorManager {
             System.exit(1);
         }
     }
+
+    public static void reportError(String message, Throwable e) {
+        if (App.DEBUG_MODE) {
+            e.printStackTrace();
+        } else {
+            System.out.println(message);
+        }
+    }
 }
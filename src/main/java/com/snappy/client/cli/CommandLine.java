@@ -2,7 +2,9 @@ package com.snappy.client.cli;
 
 import com.snappy.client.App;
 import com.snappy.client.install.Install;
+import com.snappy.client.snapshot.Snapshot;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /*
@@ -32,31 +34,38 @@ public class CommandLine {
             help.print();
         } else {
             // If the debug flag is passed, the debug mode is enabled and the flag is removed from the arguments.
-            for (String arg : args) {
-                if (arg.equals("--debug")) {
-                    enableDebugMode();
-
-                    List<String> argsList = List.of(args);
-                    argsList.remove("--debug");
-                    args = argsList.toArray(new String[argsList.size()]);
-                }
+            // The in-place flag is removed the same way.
+            List<String> argsList = new ArrayList<>(List.of(args));
+            if (argsList.remove("--debug")) {
+                enableDebugMode();
             }
+            boolean inPlace = argsList.remove("--in-place");
+            args = argsList.toArray(new String[argsList.size()]);
 
             // The first argument is parsed and the corresponding command is executed.
-            Arg arg = getArg(args[0]);
+            Arg arg = args.length == 0 ? Arg.HELP : getArg(args[0]);
             if (arg == null) {
                 System.out.println("Invalid option: " + args[0]);
                 System.out.println("Try 'snappy -h' for more information.");
             } else {
                 switch (arg) {
                     case TAKE_SNAPSHOT:
-                        System.out.println("Taking snapshot...");
+                        Snapshot snapshot = new Snapshot();
+                        snapshot.take();
                         break;
                     case LIST_SNAPSHOTS:
                         System.out.println("Listing snapshots...");
                         break;
                     case RESTORE_SNAPSHOT:
-                        System.out.println("Restoring snapshot...");
+                        // The path is optional, without it the whole snapshot is restored.
+                        // With --in-place, only the files that differ from the snapshot are downloaded.
+                        if (args.length < 2) {
+                            System.out.println("Missing snapshot name.");
+                            System.out.println("Try 'snappy -h' for more information.");
+                        } else {
+                            Snapshot restoreSnapshot = new Snapshot();
+                            restoreSnapshot.restore(args[1], args.length > 2 ? args[2] : null, inPlace);
+                        }
                         break;
                     case HELP:
                         Help help = new Help();
@@ -19,7 +19,9 @@ public class Help {
         System.out.println("Options:");
         System.out.println("\t-t\t\tTakes a snapshot of the system.");
         System.out.println("\t-l\t\tLists all snapshots saved in the server.");
-        System.out.println("\t-r <snapshot>\tRestores the system to the specified snapshot.\n");
+        System.out.println("\t-r <snapshot>\tRestores the system to the specified snapshot.");
+        System.out.println("\t-r <snapshot> <path>\tRestores only the specified file or directory from the snapshot.");
+        System.out.println("\t--in-place\tWith -r, downloads only the files that differ from the snapshot and deletes the ones that aren't in it.\n");
 
         System.out.println("\t-h\t\tPrints this help message.");
     }
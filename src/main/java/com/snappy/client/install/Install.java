@@ -5,6 +5,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -177,7 +178,14 @@ public class Install {
         data.put("version", "1.0");
         data.put("server_ip", ip);
         data.put("server_port", port);
-        data.put("default_subvolume", "/");
+        data.put("subvolumes", List.of("/"));
+        data.put("max_concurrent_uploads", 4);
+        data.put("incremental", false);
+        data.put("full_upload_days", 7);
+        data.put("cache_size_mb", 256);
+        data.put("memory_budget_mb", 0);
+        data.put("exclude", List.of("/tmp", "/var/tmp", "/var/cache"));
+        data.put("include", List.of());
 
         DumperOptions options = new DumperOptions();
         options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
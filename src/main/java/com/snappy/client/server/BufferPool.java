@@ -0,0 +1,66 @@
+package com.snappy.client.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * This class is responsible for the I/O buffers used to read the files.
+ * The buffers are off-heap and reused, so the heap doesn't grow with the size of the snapshot.
+ * A bounded pool allocates all its buffers upfront and makes acquire() wait when they are all in use,
+ * so it never goes over its memory budget. An unbounded pool allocates a new buffer when none is free.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final LinkedBlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final boolean bounded;
+
+    /*
+     * This constructor is responsible for the creation of the BufferPool object.
+     * A count of 0 or less creates an unbounded pool.
+     * 
+     * Called by:
+     * - Snapshot.createBufferPool()
+     */
+    public BufferPool(int count) {
+        this.bounded = count > 0;
+        for (int i = 0; i < count; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+    }
+
+    /*
+     * This method returns a free buffer, waiting for one to be released if the pool is bounded and empty.
+     * 
+     * Called by:
+     * - Tcp.sendSnapshot()
+     */
+    public ByteBuffer acquire() throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer.clear();
+        }
+        if (!bounded) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        try {
+            return free.take().clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+    }
+
+    /*
+     * This method gives the buffer back to the pool.
+     * 
+     * Called by:
+     * - Tcp.sendSnapshot()
+     */
+    public void release(ByteBuffer buffer) {
+        free.add(buffer);
+    }
+}
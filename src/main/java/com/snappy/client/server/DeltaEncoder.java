@@ -0,0 +1,278 @@
+package com.snappy.client.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * This class is responsible for the delta encoding of a file against its previous version, like rsync does.
+ * The server splits the previous version into blocks and sends the signature of each one:
+ * a weak rolling checksum and a strong hash.
+ * The new version is scanned with a window of one block that moves one byte at a time:
+ * when the weak checksum of the window matches a block and the strong hash confirms it,
+ * a reference to that block is sent instead of its bytes, everything else is sent as literal bytes.
+ * 
+ * The weak checksum of the bytes x[0..n) is a | (b << 16), where (with the bytes read as unsigned)
+ * a = sum of x[i] and b = sum of (n - i) * x[i], both modulo 2^16.
+ * 
+ * The scan doesn't allocate anything: the buffer is given by the caller and everything else is created in the constructor.
+ */
+class DeltaEncoder {
+    private final int blockSize;
+    private final int[] weakSums;
+    private final byte[] strongHashes;
+    private final int strongLength;
+    private final MessageDigest digest;
+    private final byte[] strongHash;
+
+    // The blocks are indexed by their weak checksum: head[] holds the first block of every bucket, next[] the following ones.
+    private final int[] head;
+    private final int[] next;
+    private final int mask;
+
+    // The blocks referenced but not sent yet, they are merged as long as they are consecutive.
+    private int runStart = -1;
+    private int runCount = 0;
+    private int maxLiteral;
+
+    /*
+     * This constructor is responsible for the creation of the DeltaEncoder object.
+     * The strong hashes of all the blocks are concatenated in a single array.
+     * 
+     * Called by:
+     * - Tcp.sendDelta()
+     */
+    DeltaEncoder(int blockSize, int[] weakSums, byte[] strongHashes, String strongAlgorithm) throws IOException {
+        this.blockSize = blockSize;
+        this.weakSums = weakSums;
+        this.strongHashes = strongHashes;
+
+        try {
+            digest = MessageDigest.getInstance(strongAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unknown hash algorithm: " + strongAlgorithm, e);
+        }
+        strongLength = digest.getDigestLength();
+        strongHash = new byte[strongLength];
+        if (strongHashes.length != weakSums.length * strongLength) {
+            throw new IOException("The server sent " + strongHashes.length + " bytes of hashes for " + weakSums.length + " blocks");
+        }
+
+        int buckets = Integer.highestOneBit(Math.max(1, weakSums.length) * 2 - 1) * 2;
+        mask = buckets - 1;
+        head = new int[buckets];
+        next = new int[weakSums.length];
+        Arrays.fill(head, -1);
+        // The blocks are added backwards, so the first block with a given checksum is found first.
+        for (int block = weakSums.length - 1; block >= 0; block--) {
+            int bucket = bucket(weakSums[block]);
+            next[block] = head[bucket];
+            head[bucket] = block;
+        }
+    }
+
+    /*
+     * This method scans the file and sends it as literal bytes and block references.
+     * Every byte read is also added to the checksum, so the file is read only once.
+     * The buffer must hold at least two blocks, literals are sent in pieces of at most maxLiteral bytes.
+     * Only the absolute methods of the buffer are used, apart from the reads of the channel.
+     * 
+     * Called by:
+     * - Tcp.sendDelta()
+     */
+    void encode(FileChannel channel, ByteBuffer buffer, int maxLiteral, FileChecksum checksum, Output output) throws IOException {
+        runStart = -1;
+        runCount = 0;
+        this.maxLiteral = maxLiteral;
+        buffer.clear();
+
+        int start = 0;
+        int end = 0;
+        int literalStart = 0;
+        boolean eof = false;
+
+        // The two halves of the weak checksum of the window, valid only if rolling is true.
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+
+        while (true) {
+            // The window needs a whole block, plus the byte that comes in when it moves.
+            if (end - start <= blockSize && !eof) {
+                if (end == buffer.capacity()) {
+                    // The buffer is full: the literal bytes are sent and the window is moved to the beginning.
+                    sendLiteral(buffer, literalStart, start, output);
+                    buffer.put(0, buffer, start, end - start);
+                    end -= start;
+                    start = 0;
+                    literalStart = 0;
+                }
+
+                buffer.limit(buffer.capacity()).position(end);
+                int length = channel.read(buffer);
+                if (length < 0) {
+                    eof = true;
+                } else {
+                    checksum.update(buffer, end, length);
+                    end += length;
+                }
+                continue;
+            }
+
+            if (end - start < blockSize) {
+                break;
+            }
+
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = buffer.get(start + i) & 0xff;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                a &= 0xffff;
+                b &= 0xffff;
+                rolling = true;
+            }
+
+            int block = findBlock(a | (b << 16), buffer, start);
+            if (block >= 0) {
+                if (literalStart < start) {
+                    sendLiteral(buffer, literalStart, start, output);
+                }
+                addBlock(block, output);
+
+                start += blockSize;
+                literalStart = start;
+                rolling = false;
+            } else {
+                if (end - start == blockSize) {
+                    // Only reached at the end of the file: there is no next byte to roll in.
+                    break;
+                }
+
+                int out = buffer.get(start) & 0xff;
+                int in = buffer.get(start + blockSize) & 0xff;
+                a = (a - out + in) & 0xffff;
+                b = (b - blockSize * out + a) & 0xffff;
+                start++;
+
+                if (start - literalStart >= maxLiteral) {
+                    sendLiteral(buffer, literalStart, start, output);
+                    literalStart = start;
+                }
+            }
+        }
+
+        // What's left is shorter than a block, or didn't match any.
+        sendLiteral(buffer, literalStart, end, output);
+        flushRun(output);
+    }
+
+    /*
+     * This method returns the block that matches the window, or -1 if there isn't any.
+     * The strong hash is computed only when the weak checksum matches.
+     * 
+     * Called by:
+     * - encode()
+     */
+    private int findBlock(int weakSum, ByteBuffer buffer, int start) throws IOException {
+        boolean hashed = false;
+
+        for (int block = head[bucket(weakSum)]; block >= 0; block = next[block]) {
+            if (weakSums[block] != weakSum) {
+                continue;
+            }
+
+            if (!hashed) {
+                buffer.limit(start + blockSize).position(start);
+                digest.update(buffer);
+                // The absolute reads are checked against the limit.
+                buffer.limit(buffer.capacity());
+                try {
+                    digest.digest(strongHash, 0, strongLength);
+                } catch (DigestException e) {
+                    throw new IOException("Could not compute the hash of a block", e);
+                }
+                hashed = true;
+            }
+
+            if (Arrays.equals(strongHash, 0, strongLength, strongHashes, block * strongLength, (block + 1) * strongLength)) {
+                return block;
+            }
+        }
+
+        return -1;
+    }
+
+    /*
+     * This method adds a block reference, merging it with the previous ones if they are consecutive.
+     * 
+     * Called by:
+     * - encode()
+     */
+    private void addBlock(int block, Output output) throws IOException {
+        if (runCount > 0 && block == runStart + runCount) {
+            runCount++;
+        } else {
+            flushRun(output);
+            runStart = block;
+            runCount = 1;
+        }
+    }
+
+    /*
+     * This method sends the literal bytes between from and to, after the block references that come before them.
+     * They are split in pieces of at most maxLiteral bytes.
+     * 
+     * Called by:
+     * - encode()
+     */
+    private void sendLiteral(ByteBuffer buffer, int from, int to, Output output) throws IOException {
+        if (from < to) {
+            flushRun(output);
+        }
+        for (int offset = from; offset < to; offset += maxLiteral) {
+            output.literal(buffer, offset, Math.min(maxLiteral, to - offset));
+        }
+    }
+
+    /*
+     * This method sends the block references not sent yet.
+     * 
+     * Called by:
+     * - encode()
+     * - addBlock()
+     * - sendLiteral()
+     */
+    private void flushRun(Output output) throws IOException {
+        if (runCount > 0) {
+            output.blocks(runStart, runCount);
+            runCount = 0;
+        }
+    }
+
+    // This method returns the bucket of a weak checksum, mixing its bits since the low ones are weak.
+    private int bucket(int weakSum) {
+        int hash = weakSum * 0x9E3779B1;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+
+    /*
+     * This interface is responsible for receiving the result of the encoding, in order.
+     * 
+     * Called by:
+     * - encode()
+     */
+    interface Output {
+        void literal(ByteBuffer buffer, int offset, int length) throws IOException;
+
+        void blocks(int firstBlock, int count) throws IOException;
+    }
+}
@@ -0,0 +1,107 @@
+package com.snappy.client.server;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/*
+ * This class is responsible for the checksums of a file.
+ * It is fed with the same bytes that are sent or restored, so the file is never read a second time.
+ * The CRC32C is always computed (the JIT turns it into hardware instructions),
+ * the strong hash only if an algorithm is specified (e.g. "SHA-256").
+ */
+public class FileChecksum {
+    private final CRC32C crc = new CRC32C();
+    private final MessageDigest digest;
+
+    /*
+     * This constructor is responsible for the creation of the FileChecksum object.
+     * The strong hash can be null to only compute the CRC32C.
+     * 
+     * Called by:
+     * - Tcp.sendFile()
+     */
+    public FileChecksum(String strongHash) {
+        if (strongHash == null) {
+            digest = null;
+        } else {
+            try {
+                digest = MessageDigest.getInstance(strongHash);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unknown hash algorithm: " + strongHash, e);
+            }
+        }
+    }
+
+    /*
+     * This method adds the bytes to the checksums.
+     * 
+     * Called by:
+     * - Snapshot.restoreFile()
+     * - FingerprintCache.getCrc()
+     */
+    public void update(byte[] buffer, int offset, int length) {
+        crc.update(buffer, offset, length);
+        if (digest != null) {
+            digest.update(buffer, offset, length);
+        }
+    }
+
+    /*
+     * This method adds the bytes of the buffer to the checksums, without changing its position and limit.
+     * 
+     * Called by:
+     * - Tcp.sendChunks()
+     * - DeltaEncoder.encode()
+     */
+    public void update(ByteBuffer buffer, int offset, int length) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        buffer.limit(offset + length).position(offset);
+        crc.update(buffer);
+        if (digest != null) {
+            buffer.position(offset);
+            digest.update(buffer);
+        }
+        buffer.limit(limit).position(position);
+    }
+
+    // This method returns the CRC32C of the bytes added so far.
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    // This method returns the strong hash as an hex string, or null if there isn't one. It can only be called once.
+    public String getStrongHash() {
+        return digest == null ? null : HexFormat.of().formatHex(digest.digest());
+    }
+
+    // This method returns the algorithm of the strong hash, or null if there isn't one.
+    public String getStrongHashAlgorithm() {
+        return digest == null ? null : digest.getAlgorithm();
+    }
+
+    // This method returns the CRC32C of a single chunk.
+    public static long crcOf(byte[] buffer, int offset, int length) {
+        CRC32C chunkCrc = new CRC32C();
+        chunkCrc.update(buffer, offset, length);
+
+        return chunkCrc.getValue();
+    }
+
+    // This method returns the CRC32C of a single chunk of the buffer, without changing its position and limit.
+    public static long crcOf(ByteBuffer buffer, int offset, int length) {
+        CRC32C chunkCrc = new CRC32C();
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        buffer.limit(offset + length).position(offset);
+        chunkCrc.update(buffer);
+        buffer.limit(limit).position(position);
+
+        return chunkCrc.getValue();
+    }
+}
@@ -0,0 +1,352 @@
+package com.snappy.client.server;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * This class is responsible for the include and exclude rules of the config file.
+ * The rules are compiled once, when the object is created:
+ * - a path starting with "/" (e.g. "/var/cache") matches that exact path, its content goes with it;
+ * - a name without "/" (e.g. "node_modules") matches every file or folder with that name;
+ * - both can contain globs (e.g. "/var/log/*.gz", "*.o"), anything else with a "/" is matched anywhere in the tree.
+ * The plain paths are stored in a trie of path segments and the plain names in a set, only the globs are tried one by one.
+ * 
+ * An excluded folder is skipped with all its content, unless an include rule with a plain path is under it:
+ * then only the way to the included paths is walked. An include rule with a glob only rescues what is walked.
+ * The paths are always the real ones (e.g. /home/user), not the ones inside the snapshot.
+ * A tree is walked with the rules by a Walker, which checks every folder once instead of every path with all its parents.
+ */
+public class PathFilter {
+    private final Node root = new Node();
+    private final Set<String> excludedNames = new HashSet<>();
+    private final Set<String> includedNames = new HashSet<>();
+    private final List<PathMatcher> excludedPaths = new ArrayList<>();
+    private final List<PathMatcher> includedPaths = new ArrayList<>();
+    private final List<PathMatcher> excludedNameGlobs = new ArrayList<>();
+    private final List<PathMatcher> includedNameGlobs = new ArrayList<>();
+    private final boolean empty;
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    /*
+     * This constructor is responsible for compiling the rules.
+     * 
+     * Called by:
+     * - Snapshot.createPathFilter()
+     * - Snapshot.getPathFilter()
+     */
+    public PathFilter(List<String> includes, List<String> excludes) {
+        this.includes = List.copyOf(includes);
+        this.excludes = List.copyOf(excludes);
+        for (String rule : excludes) {
+            addRule(rule.trim(), false);
+        }
+        for (String rule : includes) {
+            addRule(rule.trim(), true);
+        }
+
+        empty = excludes.isEmpty();
+    }
+
+    /*
+     * This method decides what to do with a file or folder, knowing if its parent folder is excluded.
+     * 
+     * Called by:
+     * - checkPath()
+     * - Walker
+     */
+    public Decision check(Path path, boolean directory, boolean parentExcluded) {
+        if (empty) {
+            return Decision.KEEP;
+        }
+
+        // A rule on the path itself wins over the rule inherited from its parent.
+        Node node = find(path);
+        boolean excluded;
+        if (isIncluded(path, node)) {
+            excluded = false;
+        } else {
+            excluded = parentExcluded || isExcludedByRule(path, node);
+        }
+
+        if (!excluded) {
+            return Decision.KEEP;
+        }
+        return directory && node != null && node.includeBelow ? Decision.TRAVERSE : Decision.SKIP;
+    }
+
+    // This method returns the include rules, as they are written in the config file.
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    // This method returns the exclude rules, as they are written in the config file.
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /*
+     * This method checks if a file is excluded, checking all the folders that contain it.
+     * It is used for the files that are not found by walking the tree.
+     * 
+     * Called by:
+     * - Tcp.sendChanges()
+     */
+    public boolean isExcluded(Path file) {
+        return checkPath(file, false) != Decision.KEEP;
+    }
+
+    /*
+     * This method decides what to do with a file or folder, checking all the folders that contain it,
+     * like a walk from the root would do.
+     * 
+     * Called by:
+     * - isExcluded()
+     * - Walker
+     */
+    public Decision checkPath(Path path, boolean directory) {
+        if (empty) {
+            return Decision.KEEP;
+        }
+
+        Decision decision = Decision.KEEP;
+        for (int i = 1; i <= path.getNameCount(); i++) {
+            Path subpath = path.getRoot().resolve(path.subpath(0, i));
+            decision = check(subpath, i < path.getNameCount() || directory, decision == Decision.TRAVERSE);
+            if (decision == Decision.SKIP) {
+                return Decision.SKIP;
+            }
+        }
+
+        return decision;
+    }
+
+    /*
+     * This method adds a rule to the right structure.
+     * 
+     * Called by:
+     * - PathFilter()
+     */
+    private void addRule(String rule, boolean include) {
+        if (rule.isEmpty()) {
+            return;
+        }
+
+        boolean glob = rule.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+        if (rule.startsWith("/") && !glob) {
+            Node node = root;
+            for (String segment : rule.split("/")) {
+                if (!segment.isEmpty()) {
+                    if (include) {
+                        node.includeBelow = true;
+                    }
+                    node = node.children.computeIfAbsent(segment, key -> new Node());
+                }
+            }
+            if (include) {
+                node.include = true;
+            } else {
+                node.exclude = true;
+            }
+        } else if (!rule.contains("/") && !glob) {
+            (include ? includedNames : excludedNames).add(rule);
+        } else if (!rule.contains("/")) {
+            (include ? includedNameGlobs : excludedNameGlobs).add(FileSystems.getDefault().getPathMatcher("glob:" + rule));
+        } else {
+            String pattern = rule.startsWith("/") ? rule : "**/" + rule;
+            (include ? includedPaths : excludedPaths).add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+    }
+
+    /*
+     * This method returns the node of the trie of the path, or null if no plain path rule goes through it.
+     * 
+     * Called by:
+     * - check()
+     */
+    private Node find(Path path) {
+        Node node = root;
+        for (Path segment : path) {
+            node = node.children.get(segment.toString());
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    /*
+     * This method checks if an include rule matches the path.
+     * 
+     * Called by:
+     * - check()
+     */
+    private boolean isIncluded(Path path, Node node) {
+        return (node != null && node.include) || matches(path, includedNames, includedNameGlobs, includedPaths);
+    }
+
+    /*
+     * This method checks if an exclude rule matches the path.
+     * 
+     * Called by:
+     * - check()
+     */
+    private boolean isExcludedByRule(Path path, Node node) {
+        return (node != null && node.exclude) || matches(path, excludedNames, excludedNameGlobs, excludedPaths);
+    }
+
+    /*
+     * This method checks the path against the names and the globs of the rules.
+     * 
+     * Called by:
+     * - isIncluded()
+     * - isExcludedByRule()
+     */
+    private boolean matches(Path path, Set<String> names, List<PathMatcher> nameGlobs, List<PathMatcher> paths) {
+        Path name = path.getFileName();
+        if (name != null) {
+            if (names.contains(name.toString())) {
+                return true;
+            }
+            for (PathMatcher matcher : nameGlobs) {
+                if (matcher.matches(name)) {
+                    return true;
+                }
+            }
+        }
+
+        for (PathMatcher matcher : paths) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /*
+     * This class is responsible for a segment of the trie of the plain path rules.
+     * 
+     * Called by:
+     * - addRule()
+     * - find()
+     */
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        boolean exclude;
+        boolean include;
+        // True if there is an include rule under this path, so it can't be skipped entirely.
+        boolean includeBelow;
+    }
+
+    /*
+     * This class is responsible for walking a tree with the rules.
+     * The root of the walk can be a snapshot: its paths are turned into the real ones before being checked.
+     * The root is checked with all its parents, then every folder only against the rules and the state of its parent,
+     * kept on a stack while the folder is walked. The skipped folders aren't walked at all.
+     * The subclasses only get the folders walked and the files kept:
+     * - acceptFolder() can skip a folder before the rules are checked;
+     * - visitFolder() gets every folder walked, the excluded ones walked to reach the included paths too;
+     * - visitKeptFile() gets every file kept by the rules;
+     * - leaveFolder() gets every folder once its content has been walked, and if it's excluded.
+     * A folder whose content can't be read goes to visitFileFailed(), like the files that can't be read.
+     * 
+     * Called by:
+     * - Tcp.sendTree()
+     * - Snapshot.deleteExtraFiles()
+     * - PathFilterTest
+     */
+    public abstract static class Walker extends SimpleFileVisitor<Path> {
+        private final PathFilter filter;
+        private final Path root;
+        private final Path realRoot;
+        // For every folder being walked, true if it's excluded and only walked to reach the included paths under it.
+        private final Deque<Boolean> excluded = new ArrayDeque<>();
+
+        protected Walker(PathFilter filter, Path root, Path realRoot) {
+            this.filter = filter;
+            this.root = root;
+            this.realRoot = realRoot;
+        }
+
+        @Override
+        public final FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+            if (!acceptFolder(dir, attributes)) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            // The root can be anywhere, so all its parents are checked too.
+            Decision decision = dir.equals(root) ? filter.checkPath(realRoot, true) : filter.check(getRealPath(dir), true, excluded.peek());
+            if (decision == Decision.SKIP) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            excluded.push(decision == Decision.TRAVERSE);
+            visitFolder(dir, attributes);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public final FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+            if (filter.check(getRealPath(file), false, excluded.peek()) == Decision.KEEP) {
+                visitKeptFile(file, attributes);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public final FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+            // The content of a folder that couldn't be read to the end is handled like a file that couldn't be read.
+            if (e != null) {
+                visitFileFailed(dir, e);
+            }
+            leaveFolder(dir, excluded.pop());
+            return FileVisitResult.CONTINUE;
+        }
+
+        // This method turns a path of the walk into the real path, the one the rules use.
+        protected Path getRealPath(Path path) {
+            return realRoot.resolve(root.relativize(path));
+        }
+
+        protected boolean acceptFolder(Path dir, BasicFileAttributes attributes) throws IOException {
+            return true;
+        }
+
+        protected void visitFolder(Path dir, BasicFileAttributes attributes) throws IOException {}
+
+        protected abstract void visitKeptFile(Path file, BasicFileAttributes attributes) throws IOException;
+
+        protected void leaveFolder(Path dir, boolean excluded) throws IOException {}
+    }
+
+    /*
+     * This enum is responsible for the result of check().
+     * KEEP sends the path, SKIP drops it (with all its content if it's a folder),
+     * TRAVERSE walks an excluded folder only to reach the included paths under it.
+     * 
+     * Called by:
+     * - check()
+     * - checkPath()
+     * - Walker
+     */
+    public enum Decision {
+        KEEP,
+        SKIP,
+        TRAVERSE
+    }
+}
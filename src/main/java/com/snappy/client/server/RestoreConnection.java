@@ -0,0 +1,134 @@
+package com.snappy.client.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.snappy.client.server.Tcp.ConnectionType;
+
+/*
+ * This class is responsible for fetching the data of a snapshot from the server, to restore it.
+ * Unlike the upload, it keeps the connection open and asks only for what is needed:
+ * first the manifest of the snapshot, then the chunks of the files to restore.
+ * The manifest is always fetched, since a snapshot taken again on the same day replaces the one with the same name.
+ * 
+ * The manifest is a map with:
+ * - "subvolume": the subvolume the snapshot has been taken from
+ * - "snapshot_path": the path of the snapshot when it has been uploaded
+ * - "folders": the list of the folders of the snapshot, each one a map with "path", "mode", "uid" and "gid"
+ *              (only the path, as a string, in the snapshots uploaded before they were sent)
+ * - "files": the list of the files, each one a map with "path", "size", "mtime", "crc32c", "chunks" (the CRC32C of every chunk),
+ *            "mode", "uid" and "gid" (missing in the snapshots uploaded before they were sent)
+ * - "links": the list of the symbolic links, each one a map with "path" and "target"
+ * - "skipped": the list of the paths that couldn't be read during the upload
+ * - "include" and "exclude": the rules of the config file used by the upload
+ * The last four are missing in the snapshots uploaded before they were sent.
+ */
+public class RestoreConnection implements Closeable {
+    private final String host;
+    private final int port;
+
+    private Socket socket;
+    private ObjectOutputStream outputStream;
+    private ObjectInputStream inputStream;
+
+    /*
+     * This constructor is responsible for the creation of the RestoreConnection object.
+     * 
+     * Called by:
+     * - Snapshot.restore()
+     */
+    public RestoreConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /*
+     * This method is responsible for fetching the manifest of the snapshot.
+     * 
+     * Called by:
+     * - Snapshot.getManifest()
+     */
+    public Map<?, ?> fetchManifest(String snapshot) throws IOException {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("type", ConnectionType.GET);
+        data.put("content_type", ConnectionType.MANIFEST);
+        data.put("snapshot", snapshot);
+
+        return request(data);
+    }
+
+    /*
+     * This method is responsible for fetching a chunk of a file.
+     * The server answers with a frame holding the length and the CRC32C of the chunk, followed by its raw bytes,
+     * like the chunks sent by Tcp. The CRC32C is checked before returning the chunk.
+     * 
+     * Called by:
+     * - Snapshot.restoreFile()
+     */
+    public byte[] fetchChunk(String snapshot, String path, int index) throws IOException {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("type", ConnectionType.GET);
+        data.put("content_type", ConnectionType.FILE_CHUNK);
+        data.put("snapshot", snapshot);
+        data.put("path", path);
+        data.put("index", index);
+
+        Map<?, ?> header = request(data);
+        byte[] content = new byte[((Number) header.get("length")).intValue()];
+        inputStream.readFully(content);
+
+        if (FileChecksum.crcOf(content, 0, content.length) != ((Number) header.get("crc32c")).longValue()) {
+            throw new IOException("Chunk " + index + " of " + path + " has been corrupted while downloading");
+        }
+        return content;
+    }
+
+    /*
+     * This method is responsible for sending a request and reading the answer of the server.
+     * 
+     * Called by:
+     * - fetchManifest()
+     * - fetchChunk()
+     */
+    private Map<?, ?> request(Map<String, Object> data) throws IOException {
+        if (socket == null) {
+            try {
+                socket = new Socket(host, port);
+            } catch (UnknownHostException e) {
+                throw new IOException("Unknown host. Be sure to have typed the correct informations during installation", e);
+            }
+            outputStream = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        outputStream.writeObject(data);
+        outputStream.flush();
+        outputStream.reset();
+
+        // The server writes the header of its stream only once it has accepted the connection.
+        if (inputStream == null) {
+            inputStream = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        Map<?, ?> answer;
+        try {
+            answer = (Map<?, ?>) inputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("The server sent an invalid answer", e);
+        }
+
+        if (answer.get("error") != null) {
+            throw new IOException("The server refused the request: " + answer.get("error"));
+        }
+        return answer;
+    }
+
+    // This method closes the connection to the server.
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -2,162 +2,604 @@ package com.snappy.client.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
-import com.snappy.client.ErrorManager;
+import com.snappy.client.snapshot.FingerprintCache;
 
 /*
  * This class is responsible for the communication with the server.
  * It can send the snapshot to the server (for now).
+ * 
+ * Every file is sent as a header frame, one frame for each chunk and an end frame.
+ * A chunk frame is followed by the raw bytes of the chunk and carries their CRC32C,
+ * the end frame carries the CRC32C (and the optional strong hash) of the whole file.
+ * The checksums are computed while the file is read for sending, so it is read only once.
+ * A symbolic link is sent as a link frame holding its target, it is never followed:
+ * an absolute link would lead out of the snapshot, into the live filesystem.
+ * Fifos, sockets and devices are not sent.
+ * 
+ * In every upload, full or incremental, the big files that already have a previous version on the server
+ * are delta encoded (see DeltaEncoder): the chunk frames only hold the bytes that changed
+ * and the blocks frames reference the blocks of the previous version that are still there.
+ * 
+ * The memory used doesn't depend on the size of the snapshot: the files are read into a buffer
+ * of the BufferPool, the snapshot is sent while it's walked and the folders are sent in batches.
  */
 public class Tcp {
+    // Smaller files are sent whole, the request of the signatures would cost more than it saves.
+    private static final int MIN_DELTA_SIZE = 1024 * 1024;
+    private static final int FOLDER_BATCH_SIZE = 1000;
+
     private final String host;
     private final int port;
+    private final String strongHash;
+    private final BufferPool bufferPool;
+    private final PathFilter pathFilter;
+    private final FingerprintCache fingerprints;
+
+    private ObjectInputStream inputStream;
+    // The bytes of the off-heap buffer go through this array to reach the stream.
+    private final byte[] transfer = new byte[64 * 1024];
     
     /*
      * This constructor is responsible for the creation of the Tcp object.
+     * The strong hash is the algorithm added to the CRC32C of every file (e.g. "SHA-256"), it can be null.
+     * The buffer pool is shared by all the uploads, the path filter decides what isn't sent.
+     * The fingerprints of the files sent are saved in the fingerprint cache, it can be null.
      * 
      * Called by:
-     * - Snapshot.sendSnapshot()
+     * - Snapshot.sendSnapshots()
      */
-    public Tcp(String host, int port) {
+    public Tcp(String host, int port, String strongHash, BufferPool bufferPool, PathFilter pathFilter, FingerprintCache fingerprints) {
         this.host = host;
         this.port = port;
+        this.strongHash = strongHash;
+        this.bufferPool = bufferPool;
+        this.pathFilter = pathFilter;
+        this.fingerprints = fingerprints;
     }
 
     /*
      * This method is responsible for the sending of the snapshot to the server.
+     * It throws an IOException instead of exiting, so that a failed upload doesn't stop the other ones.
+     * 
+     * Called by:
+     * - Snapshot.sendSnapshots()
+     */
+    public void send(String subvolume, String snapshotPath) throws IOException {
+        System.out.println("Sending " + snapshotPath + "...");
+        sendSnapshot(subvolume, snapshotPath, null, null);
+    }
+
+    /*
+     * This method is responsible for the sending of the files changed since the base generation to the server.
+     * Only the folders containing those files are sent, so the snapshot is never walked.
      * 
      * Called by:
-     * - Snapshot.sendSnapshot()
+     * - Snapshot.sendSnapshots()
      */
-    public void send(String snapshotPath) {
-        System.out.println("Sending the snapshot...");
-        sendSnapshot(snapshotPath);
+    public void sendChanges(String subvolume, String snapshotPath, List<File> files, long baseGeneration) throws IOException {
+        // The changed files don't come from the walk, so each one is checked against the rules with all its folders.
+        Path root = Paths.get(snapshotPath);
+        files = new ArrayList<>(files);
+        files.removeIf(file -> pathFilter.isExcluded(getRealPath(subvolume, root, file.toPath())));
+
+        System.out.println("Sending " + files.size() + " changed files of " + snapshotPath + "...");
+        sendSnapshot(subvolume, snapshotPath, files, baseGeneration);
     }
 
     /*
      * This method is responsible for the sending of the snapshot to the server.
+     * The changed files and the base generation are null for a full upload, then the whole snapshot is walked.
+     * The upload waits for a free buffer if the pool is bounded and empty.
      * 
      * Called by:
      * - send()
+     * - sendChanges()
      */
-    private void sendSnapshot(String snapshotPath) {
-        try {
-            // The following methods are responsible for the creation of the socket and the sending of the snapshot.
-            Socket socket = new Socket(host, port);
-            List<String> folders = getFolderList(snapshotPath);
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            List<File> files = processFiles(snapshotPath);
+    private void sendSnapshot(String subvolume, String snapshotPath, List<File> changedFiles, Long baseGeneration) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
 
-            sendFolderList(folders, socket, outputStream);
-            sendFiles(files, outputStream);
-
-            outputStream.close();
-        } catch (IOException e) {
-            ErrorManager.exitWithError("Unknown host. Be sure to have typed the correct informations during installation", e);
+        // The following methods are responsible for the creation of the socket and the sending of the snapshot.
+        try (Socket socket = new Socket(host, port);
+             ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            int fileCount;
+            List<String> skipped = new ArrayList<>();
+            if (changedFiles == null) {
+                fileCount = sendTree(subvolume, snapshotPath, buffer, socket, outputStream, skipped);
+            } else {
+                sendFolderList(subvolume, snapshotPath, getParentFolders(snapshotPath, changedFiles), socket, outputStream, baseGeneration);
+                fileCount = sendFiles(subvolume, snapshotPath, changedFiles, buffer, socket, outputStream);
+            }
+            sendEnd(skipped, outputStream);
+            checkVerification(socket, fileCount);
+        } catch (UnknownHostException e) {
+            throw new IOException("Unknown host. Be sure to have typed the correct informations during installation", e);
+        } finally {
+            bufferPool.release(buffer);
         }
     }
 
     /*
-     * This method is responsible for the creation of the list of folders to send to the server.
+     * This method is responsible for walking the snapshot and sending its folders and files as they are found.
+     * The folders are sent in batches, always before the files they contain.
+     * The path filter is checked at every folder, so an excluded folder is skipped without reading its content.
+     * The first folder list is sent even if it's empty, since it tells the server which snapshot is coming.
+     * What can't be read is skipped and added to the skipped paths, so that a restore leaves it alone.
+     * It returns the number of files sent, the links aren't counted since the server doesn't verify them.
      * 
      * Called by:
      * - sendSnapshot()
      */
-    private List<String> getFolderList(String path) {
-        List<String> folders = new ArrayList<>();
-        File directory = new File(path);
+    private int sendTree(String subvolume, String snapshotPath, ByteBuffer buffer, Socket socket, ObjectOutputStream outputStream, List<String> skipped) throws IOException {
+        Path root = Paths.get(snapshotPath);
+
+        // The subvolume can be anywhere, so the walker checks all its parents too, like sendChanges() does.
+        TreeSender sender = new TreeSender(pathFilter, root, Paths.get(subvolume)) {
+            @Override
+            protected void visitFolder(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (dir.equals(root)) {
+                    return;
+                }
+
+                folders.add(getFolderEntry(dir));
+                if (folders.size() >= FOLDER_BATCH_SIZE) {
+                    flushFolders();
+                }
+            }
 
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    folders.add(file.getPath());
-                    folders.addAll(getFolderList(file.getPath()));
+            @Override
+            protected void visitKeptFile(Path file, BasicFileAttributes attributes) throws IOException {
+                // The attributes are the ones of the link itself, the links are never followed.
+                // Reading a fifo or a socket would never end, so they are left out.
+                if (attributes.isRegularFile() || attributes.isSymbolicLink()) {
+                    if (!folders.isEmpty() || !started) {
+                        flushFolders();
+                    }
+                    if (attributes.isSymbolicLink()) {
+                        sendLink(file, outputStream);
+                    } else {
+                        // The server keeps the files of the last upload, so a full upload can be delta encoded too.
+                        Map<?, ?> signatures = null;
+                        if (attributes.size() >= MIN_DELTA_SIZE) {
+                            signatures = requestSignatures(subvolume, snapshotPath, file.toFile(), socket, outputStream);
+                        }
+                        sendFile(file.toFile(), getRealPath(file), buffer, signatures, outputStream);
+                        fileCount++;
+                    }
+                    outputStream.reset();
                 }
             }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                skipped.add(file.toString());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            void flushFolders() throws IOException {
+                sendFolderList(subvolume, snapshotPath, folders, socket, outputStream, null);
+                // The stream would send a reference to the old list if the same one was sent again.
+                outputStream.reset();
+                folders = new ArrayList<>();
+                started = true;
+            }
+        };
+
+        Files.walkFileTree(root, sender);
+        if (!sender.folders.isEmpty() || !sender.started) {
+            sender.flushFolders();
+        }
+
+        return sender.fileCount;
+    }
+
+    /*
+     * This method is responsible for turning a path inside the snapshot into the real path, the one the rules use.
+     * 
+     * Called by:
+     * - sendChanges()
+     * - sendFiles()
+     */
+    private Path getRealPath(String subvolume, Path snapshotRoot, Path path) {
+        return Paths.get(subvolume).resolve(snapshotRoot.relativize(path));
+    }
+
+    /*
+     * This method is responsible for the creation of the list of folders containing the specified files.
+     * 
+     * Called by:
+     * - sendChanges()
+     */
+    private List<Map<String, Object>> getParentFolders(String snapshotPath, List<File> files) throws IOException {
+        Set<String> paths = new TreeSet<>();
+        File root = new File(snapshotPath);
+
+        for (File file : files) {
+            File parent = file.getParentFile();
+            while (parent != null && !parent.equals(root) && paths.add(parent.getPath())) {
+                parent = parent.getParentFile();
+            }
         }
 
+        // The TreeSet sorts the parents before their children.
+        List<Map<String, Object>> folders = new ArrayList<>();
+        for (String path : paths) {
+            folders.add(getFolderEntry(Paths.get(path)));
+        }
         return folders;
     }
+
+    /*
+     * This method is responsible for the creation of the entry of a folder in the folder list:
+     * its path, its mode and its owner, so that a restored folder gets them back.
+     * 
+     * Called by:
+     * - sendTree()
+     * - getParentFolders()
+     */
+    private Map<String, Object> getFolderEntry(Path folder) throws IOException {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("path", folder.toString());
+        putAttributes(folder, entry);
+
+        return entry;
+    }
+
+    /*
+     * This method is responsible for adding the mode and the owner of a file or a folder to a frame.
+     * Otherwise everything would come back as root's with the default mode.
+     * 
+     * Called by:
+     * - getFolderEntry()
+     * - sendFile()
+     */
+    private void putAttributes(Path path, Map<String, Object> data) throws IOException {
+        Map<String, Object> attributes = Files.readAttributes(path, "unix:mode,uid,gid", LinkOption.NOFOLLOW_LINKS);
+        data.put("mode", attributes.get("mode"));
+        data.put("uid", attributes.get("uid"));
+        data.put("gid", attributes.get("gid"));
+    }
     
     /*
      * This method is responsible for the sending of the list of folders to the server.
+     * Every folder is a map with its "path", "mode", "uid" and "gid".
+     * The subvolume and the snapshot path are needed by the manifest, to restore the files where they were.
      * 
      * Called by:
      * - sendSnapshot()
      */
-    private void sendFolderList(List<String> folders, Socket socket, ObjectOutputStream outputStream) {
-        try {
-            Map<String, Object> data = new HashMap<String, Object>();
-            data.put("type", ConnectionType.POST);
-            data.put("content_type", ConnectionType.FOLDER_LIST);
-            data.put("content", folders);
-
-            outputStream.writeObject(data);
-        } catch (IOException e) {
-            ErrorManager.exitWithError("Something went wrong while sending the folder list. Report this error to the developer.", e);
+    private void sendFolderList(String subvolume, String snapshotPath, List<Map<String, Object>> folders, Socket socket, ObjectOutputStream outputStream, Long baseGeneration) throws IOException {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("type", ConnectionType.POST);
+        data.put("content_type", ConnectionType.FOLDER_LIST);
+        data.put("subvolume", subvolume);
+        data.put("snapshot_path", snapshotPath);
+        data.put("content", folders);
+        // With a base generation the server has to keep the files it already has, instead of replacing the whole snapshot.
+        if (baseGeneration != null) {
+            data.put("base_generation", baseGeneration);
         }
+
+        outputStream.writeObject(data);
     }
 
     /*
-     * This method is responsible for the sending of the files to the server.
+     * This method is responsible for the sending of the changed files to the server.
+     * It returns the number of files sent, without the links.
      * 
      * Called by:
      * - sendSnapshot()
      */
-    private void sendFiles(List<File> files, ObjectOutputStream outputStream) {
-        try {
-            // The following methods are responsible for the creation of the map of files to send to the server.
-            Map<String, Object> content = new LinkedHashMap<String, Object>();
+    private int sendFiles(String subvolume, String snapshotPath, List<File> files, ByteBuffer buffer, Socket socket, ObjectOutputStream outputStream) throws IOException {
+        Path root = Paths.get(snapshotPath);
+        int fileCount = 0;
+        for (File file : files) {
+            if (Files.isSymbolicLink(file.toPath())) {
+                sendLink(file.toPath(), outputStream);
+                outputStream.reset();
+                continue;
+            }
 
-            for (File file : files) {
-                content.put("name", file.getName());
-                content.put("path", file.getPath());
-                content.put("content", Files.readAllBytes(file.toPath()));
+            // The changed files always have a previous version on the server, unless they are new.
+            Map<?, ?> signatures = null;
+            if (file.length() >= MIN_DELTA_SIZE) {
+                signatures = requestSignatures(subvolume, snapshotPath, file, socket, outputStream);
             }
 
-            Map<String, Object> data = new HashMap<String, Object>();
-            data.put("type", ConnectionType.POST);
-            data.put("content_type", ConnectionType.FILE_MAP);
-            data.put("content", content);
+            sendFile(file, getRealPath(subvolume, root, file.toPath()), buffer, signatures, outputStream);
+            // Otherwise the stream keeps a reference to every frame sent so far.
+            outputStream.reset();
+            fileCount++;
+        }
+
+        return fileCount;
+    }
+
+    /*
+     * This method is responsible for the sending of a symbolic link to the server.
+     * Only its target is sent, as it is written in the link.
+     * 
+     * Called by:
+     * - sendTree()
+     * - sendFiles()
+     */
+    private void sendLink(Path link, ObjectOutputStream outputStream) throws IOException {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("type", ConnectionType.POST);
+        data.put("content_type", ConnectionType.FILE_LINK);
+        data.put("name", link.getFileName().toString());
+        data.put("path", link.toString());
+        data.put("target", Files.readSymbolicLink(link).toString());
+
+        outputStream.writeObject(data);
+    }
+
+    /*
+     * This method is responsible for the sending of a single file to the server.
+     * With the signatures of the previous version the file is delta encoded, otherwise it is sent chunk by chunk.
+     * Its CRC32C is saved in the fingerprint cache under the real path, so an in-place restore doesn't read the live file again.
+     * 
+     * Called by:
+     * - sendTree()
+     * - sendFiles()
+     */
+    private void sendFile(File file, Path realPath, ByteBuffer buffer, Map<?, ?> signatures, ObjectOutputStream outputStream) throws IOException {
+        FileChecksum checksum = new FileChecksum(strongHash);
+
+        Map<String, Object> header = new HashMap<String, Object>();
+        header.put("type", ConnectionType.POST);
+        header.put("content_type", ConnectionType.FILE_HEADER);
+        header.put("name", file.getName());
+        header.put("path", file.getPath());
+        header.put("size", file.length());
+        header.put("mtime", file.lastModified());
+        putAttributes(file.toPath(), header);
+        header.put("delta", signatures != null);
+        outputStream.writeObject(header);
+
+        long size;
+        if (signatures != null) {
+            size = sendDelta(file, buffer, signatures, checksum, outputStream);
+        } else {
+            size = sendChunks(file, buffer, checksum, outputStream);
+        }
+
+        Map<String, Object> end = new HashMap<String, Object>();
+        end.put("type", ConnectionType.POST);
+        end.put("content_type", ConnectionType.FILE_END);
+        end.put("path", file.getPath());
+        end.put("size", size);
+        end.put("crc32c", checksum.getCrc());
+        if (strongHash != null) {
+            end.put("hash_algorithm", checksum.getStrongHashAlgorithm());
+            end.put("hash", checksum.getStrongHash());
+        }
+        outputStream.writeObject(end);
 
-            outputStream.writeObject(data);
-        } catch (IOException e) {
-            ErrorManager.exitWithError("Something went wrong while sending the file. Report this error to the developer.", e);
+        if (fingerprints != null) {
+            fingerprints.put(realPath, file.toPath(), checksum.getCrc());
         }
     }
-    
+
     /*
-     * This method is responsible for the creation of the list of files to send to the server.
+     * This method is responsible for the sending of the whole file, chunk by chunk.
+     * It returns the size of the file.
      * 
      * Called by:
-     * - sendSnapshot()
+     * - sendFile()
      */
-    private List<File> processFiles(String path) {
-        List<File> fileList = new ArrayList<>();
-        File directory = new File(path);
-
-        
-        File[] files = directory.listFiles();
-        // If the directory is empty, the method returns an empty list.
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    fileList.addAll(processFiles(file.getPath()));
-                } else {
-                    fileList.add(file);
+    private long sendChunks(File file, ByteBuffer buffer, FileChecksum checksum, ObjectOutputStream outputStream) throws IOException {
+        long size = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof) {
+                // The buffer is filled completely, unless the file ends first.
+                buffer.clear();
+                while (buffer.hasRemaining() && !eof) {
+                    eof = channel.read(buffer) < 0;
+                }
+
+                int length = buffer.position();
+                if (length > 0) {
+                    checksum.update(buffer, 0, length);
+                    sendChunk(buffer, 0, length, outputStream);
+                    size += length;
                 }
             }
         }
 
-        return fileList;
+        return size;
+    }
+
+    /*
+     * This method is responsible for the sending of the file delta encoded against its previous version.
+     * The literal bytes are sent as chunk frames, the blocks of the previous version as blocks frames.
+     * It returns the size of the file.
+     * 
+     * Called by:
+     * - sendFile()
+     */
+    private long sendDelta(File file, ByteBuffer buffer, Map<?, ?> signatures, FileChecksum checksum, ObjectOutputStream outputStream) throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(((Number) signatures.get("block_size")).intValue(),
+                                                (int[]) signatures.get("weak"),
+                                                (byte[]) signatures.get("strong"),
+                                                (String) signatures.get("algorithm"));
+
+        long[] size = new long[] {0};
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            encoder.encode(channel, buffer, buffer.capacity() / 2, checksum, new DeltaEncoder.Output() {
+                @Override
+                public void literal(ByteBuffer literalBuffer, int offset, int length) throws IOException {
+                    sendChunk(literalBuffer, offset, length, outputStream);
+                    size[0] += length;
+                }
+
+                @Override
+                public void blocks(int firstBlock, int count) throws IOException {
+                    Map<String, Object> blocks = new HashMap<String, Object>();
+                    blocks.put("type", ConnectionType.POST);
+                    blocks.put("content_type", ConnectionType.FILE_BLOCKS);
+                    blocks.put("first_block", firstBlock);
+                    blocks.put("count", count);
+                    outputStream.writeObject(blocks);
+                    // A delta can hold millions of frames, the stream mustn't keep a reference to each of them.
+                    outputStream.reset();
+                    size[0] += (long) count * ((Number) signatures.get("block_size")).intValue();
+                }
+            });
+        }
+
+        return size[0];
+    }
+
+    /*
+     * This method is responsible for the sending of a chunk frame, followed by the raw bytes of the chunk.
+     * The stream is reset after the raw bytes, the server reads the reset with the next frame.
+     * 
+     * Called by:
+     * - sendChunks()
+     * - sendDelta()
+     */
+    private void sendChunk(ByteBuffer buffer, int offset, int length, ObjectOutputStream outputStream) throws IOException {
+        Map<String, Object> chunk = new HashMap<String, Object>();
+        chunk.put("type", ConnectionType.POST);
+        chunk.put("content_type", ConnectionType.FILE_CHUNK);
+        chunk.put("length", length);
+        chunk.put("crc32c", FileChecksum.crcOf(buffer, offset, length));
+        outputStream.writeObject(chunk);
+
+        for (int position = offset; position < offset + length; position += transfer.length) {
+            int count = Math.min(transfer.length, offset + length - position);
+            buffer.get(position, transfer, 0, count);
+            outputStream.write(transfer, 0, count);
+        }
+        // Otherwise the stream keeps a reference to every chunk frame until the end of the file.
+        outputStream.reset();
+    }
+
+    /*
+     * This method is responsible for asking the server the block signatures of the previous version of the file.
+     * The server answers with "block_size", "weak" (the weak checksum of every block), "strong" (their hashes,
+     * one after the other) and "algorithm" (the algorithm of the hashes, e.g. "MD5"),
+     * or without "weak" if there isn't any previous version. In that case null is returned.
+     * 
+     * Called by:
+     * - sendTree()
+     * - sendFiles()
+     */
+    private Map<?, ?> requestSignatures(String subvolume, String snapshotPath, File file, Socket socket, ObjectOutputStream outputStream) throws IOException {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("type", ConnectionType.GET);
+        data.put("content_type", ConnectionType.SIGNATURES);
+        data.put("subvolume", subvolume);
+        data.put("path", new File(snapshotPath).toPath().relativize(file.toPath()).toString());
+        outputStream.writeObject(data);
+        outputStream.flush();
+
+        Map<?, ?> signatures = readAnswer(socket);
+        if (signatures.get("weak") == null) {
+            return null;
+        }
+
+        // The scan needs two blocks in the buffer, bigger blocks are too big to be worth it.
+        int blockSize = ((Number) signatures.get("block_size")).intValue();
+        return blockSize > 0 && blockSize <= BufferPool.BUFFER_SIZE / 2 ? signatures : null;
+    }
+
+    /*
+     * This method is responsible for telling the server that the whole snapshot has been sent.
+     * It also sends the paths that couldn't be read and the rules that decided what was sent, the server keeps them in the manifest:
+     * an in-place restore leaves alone what the upload left out, even if the config file changed since then.
+     * 
+     * Called by:
+     * - sendSnapshot()
+     */
+    private void sendEnd(List<String> skipped, ObjectOutputStream outputStream) throws IOException {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("type", ConnectionType.POST);
+        data.put("content_type", ConnectionType.END);
+        data.put("skipped", skipped);
+        data.put("include", new ArrayList<>(pathFilter.getIncludes()));
+        data.put("exclude", new ArrayList<>(pathFilter.getExcludes()));
+
+        outputStream.writeObject(data);
+        outputStream.flush();
+    }
+
+    /*
+     * This method is responsible for reading the verification sent back by the server.
+     * The server checks every file against the checksums of its end frame and answers with
+     * the number of files verified and the paths of the ones that didn't match.
+     * 
+     * Called by:
+     * - sendSnapshot()
+     */
+    private void checkVerification(Socket socket, int fileCount) throws IOException {
+        Map<?, ?> data = readAnswer(socket);
+
+        List<?> corrupted = (List<?>) data.get("corrupted");
+        Number verified = (Number) data.get("verified");
+        if (corrupted != null && !corrupted.isEmpty()) {
+            throw new IOException("The server received " + corrupted.size() + " corrupted files, e.g. " + corrupted.get(0));
+        }
+        if (verified == null || verified.intValue() != fileCount) {
+            throw new IOException("The server verified " + verified + " files out of " + fileCount);
+        }
+    }
+    
+    /*
+     * This method is responsible for reading an answer of the server.
+     * 
+     * Called by:
+     * - requestSignatures()
+     * - checkVerification()
+     */
+    private Map<?, ?> readAnswer(Socket socket) throws IOException {
+        // The server writes the header of its stream only when it answers for the first time.
+        if (inputStream == null) {
+            inputStream = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        try {
+            return (Map<?, ?>) inputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("The server sent an invalid answer", e);
+        }
+    }
+
+    /*
+     * This class is responsible for keeping the state of sendTree() while the snapshot is walked.
+     * 
+     * Called by:
+     * - sendTree()
+     */
+    private abstract static class TreeSender extends PathFilter.Walker {
+        List<Map<String, Object>> folders = new ArrayList<>();
+        int fileCount = 0;
+        boolean started = false;
+
+        TreeSender(PathFilter filter, Path root, Path realRoot) {
+            super(filter, root, realRoot);
+        }
+
+        abstract void flushFolders() throws IOException;
     }
 
 
@@ -166,11 +608,25 @@ public class Tcp {
      * 
      * Called by:
      * - sendFolderList()
-     * - sendFiles()
+     * - sendFile()
+     * - sendDelta()
+     * - sendChunk()
+     * - sendLink()
+     * - requestSignatures()
+     * - sendEnd()
+     * - RestoreConnection
      */
-    private enum ConnectionType {
+    enum ConnectionType {
         POST,
+        GET,
         FOLDER_LIST,
-        FILE_MAP,
+        MANIFEST,
+        SIGNATURES,
+        FILE_HEADER,
+        FILE_CHUNK,
+        FILE_BLOCKS,
+        FILE_END,
+        FILE_LINK,
+        END,
     }
 }
@@ -0,0 +1,232 @@
+package com.snappy.client.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.snappy.client.ErrorManager;
+
+/*
+ * This class is responsible for the local cache of the chunks fetched from the server.
+ * Every entry is a file in /etc/snappy/cache, named after the hash of its key.
+ * The snapshot names are reused when a snapshot is taken again on the same day, so the key of a chunk
+ * also holds the CRC32C of the file and of the chunk: a chunk of another upload is never returned for them.
+ * The cache is bounded in size: when it is full, the least recently used entries are removed.
+ * The last modified time of the files keeps the order between runs.
+ * The chunks hold the content of any file of the snapshots, so the directory is only readable by root (0700)
+ * and every entry is created 0600, whatever the umask.
+ */
+public class BlockCache {
+    private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> ENTRY_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+    private final File directory;
+    private final long maxSize;
+    // False if the directory couldn't be made private: nothing is read from or written to it then.
+    private final boolean usable;
+
+    // The entries from the least to the most recently used, mapped to their size.
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size = 0;
+
+    /*
+     * This constructor is responsible for the creation of the BlockCache object.
+     * It loads the entries already in the cache directory, and fixes the permissions of a directory created by an older version.
+     * 
+     * Called by:
+     * - Snapshot.restore()
+     * - BlockCacheTest
+     */
+    public BlockCache(String directory, long maxSize) {
+        this.directory = new File(directory);
+        this.maxSize = maxSize;
+        this.usable = prepareDirectory();
+
+        File[] files = usable ? this.directory.listFiles() : null;
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                } else {
+                    try {
+                        Files.setPosixFilePermissions(file.toPath(), ENTRY_PERMISSIONS);
+                    } catch (IOException e) {
+                        file.delete();
+                        continue;
+                    }
+                    entries.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+        }
+        evict();
+    }
+
+    /*
+     * This method creates the cache directory with the permissions 0700, or sets them if it already exists.
+     * It returns false if the directory can't be used, e.g. because it is a symbolic link.
+     * 
+     * Called by:
+     * - BlockCache()
+     */
+    private boolean prepareDirectory() {
+        Path path = directory.toPath();
+        try {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectories(path, PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+            }
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException(path + " is not a directory");
+            }
+            Files.setPosixFilePermissions(path, DIRECTORY_PERMISSIONS);
+            return true;
+        } catch (IOException e) {
+            ErrorManager.reportError("The chunk cache " + path + " can't be used, every chunk will be fetched from the server.", e);
+            return false;
+        }
+    }
+
+    /*
+     * This method returns the cached chunk, or null if it isn't in the cache.
+     * 
+     * Called by:
+     * - Snapshot.restoreFile()
+     */
+    public synchronized byte[] getChunk(String snapshot, String path, long fileCrc, int index, long chunkCrc) {
+        return get(key("chunk", snapshot, path, Long.toString(fileCrc), Integer.toString(index), Long.toString(chunkCrc)));
+    }
+
+    /*
+     * This method adds the chunk to the cache.
+     * 
+     * Called by:
+     * - Snapshot.restoreFile()
+     */
+    public synchronized void putChunk(String snapshot, String path, long fileCrc, int index, long chunkCrc, byte[] content) {
+        put(key("chunk", snapshot, path, Long.toString(fileCrc), Integer.toString(index), Long.toString(chunkCrc)), content);
+    }
+
+    /*
+     * This method reads an entry and marks it as the most recently used.
+     * A cache that can't be read is treated as a miss, the data will be fetched from the server again.
+     * 
+     * Called by:
+     * - getChunk()
+     */
+    private byte[] get(String key) {
+        if (entries.get(key) == null) {
+            return null;
+        }
+
+        File file = new File(directory, key);
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return content;
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    /*
+     * This method writes an entry and removes the least recently used ones if the cache is full.
+     * Entries bigger than the whole cache are not stored.
+     * 
+     * Called by:
+     * - putChunk()
+     */
+    private void put(String key, byte[] content) {
+        if (!usable || content.length > maxSize) {
+            return;
+        }
+        remove(key);
+
+        // The entry is written to a temporary file first, so a crash never leaves half an entry in the cache.
+        File temporary = new File(directory, key + ".tmp");
+        FileAttribute<Set<PosixFilePermission>> permissions = PosixFilePermissions.asFileAttribute(ENTRY_PERMISSIONS);
+        try {
+            Files.deleteIfExists(temporary.toPath());
+            Files.createFile(temporary.toPath(), permissions);
+            Files.write(temporary.toPath(), content);
+            Files.move(temporary.toPath(), new File(directory, key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temporary.delete();
+            return;
+        }
+
+        entries.put(key, (long) content.length);
+        size += content.length;
+        evict();
+    }
+
+    /*
+     * This method removes an entry.
+     * 
+     * Called by:
+     * - get()
+     * - put()
+     */
+    private void remove(String key) {
+        Long length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+            new File(directory, key).delete();
+        }
+    }
+
+    /*
+     * This method removes the least recently used entries until the cache fits in its maximum size.
+     * 
+     * Called by:
+     * - BlockCache()
+     * - put()
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            size -= entry.getValue();
+            new File(directory, entry.getKey()).delete();
+            iterator.remove();
+        }
+    }
+
+    /*
+     * This method returns the name of the file of an entry.
+     * 
+     * Called by:
+     * - getChunk()
+     * - putChunk()
+     */
+    private static String key(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                // The separator avoids that ("ab", "c") and ("a", "bc") have the same key.
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
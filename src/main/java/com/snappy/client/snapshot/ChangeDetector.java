@@ -0,0 +1,289 @@
+package com.snappy.client.snapshot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/*
+ * This class is responsible for finding the files changed since the last uploaded snapshot.
+ * Instead of walking the whole tree, it asks btrfs for the extents written after a given generation
+ * (the transaction id that btrfs stamps on every change) with "btrfs subvolume find-new".
+ * The generation of the last uploaded snapshot of every subvolume is stored in /etc/snappy/generations.yml,
+ * with the UUID of the subvolume and the date of its last full upload.
+ * 
+ * WARNING: find-new only reports files whose data has been written.
+ *          Deleted files, files moved or renamed into place, new empty files and metadata-only changes
+ *          (e.g. chmod) are not reported. That's why incremental uploads are off by default, and why
+ *          a full upload is still done every few days: it's the only one that catches those changes.
+ */
+public class ChangeDetector {
+    private static final String GENERATIONS_FILE = "/etc/snappy/generations.yml";
+
+    // The largest generation btrfs accepts, used to get only the transid marker without any file.
+    private static final String MAX_GENERATION = "18446744073709551615";
+
+    private final String generationsFile;
+
+    public ChangeDetector() {
+        this(GENERATIONS_FILE);
+    }
+
+    /*
+     * This constructor is responsible for the creation of a ChangeDetector that keeps the generations in another file.
+     * 
+     * Called by:
+     * - ChangeDetector()
+     * - ChangeDetectorTest
+     */
+    ChangeDetector(String generationsFile) {
+        this.generationsFile = generationsFile;
+    }
+
+    /*
+     * This method returns the UUID of the subvolume.
+     * A generation is only meaningful for the subvolume it has been read from: a subvolume
+     * created again (e.g. after restoring the filesystem) starts from a new UUID and lower generations.
+     * 
+     * Called by:
+     * - Snapshot.sendSnapshots()
+     */
+    public String getSubvolumeUuid(String subvolume) throws IOException {
+        String[] uuid = new String[] {null};
+        runBtrfs(List.of("btrfs", "subvolume", "show", subvolume), line -> {
+            // "Parent UUID:" and "Received UUID:" are other lines, only the one starting with "UUID:" is the subvolume's.
+            String trimmed = line.trim();
+            if (uuid[0] == null && trimmed.startsWith("UUID:")) {
+                uuid[0] = trimmed.substring("UUID:".length()).trim();
+            }
+        });
+
+        if (uuid[0] == null || uuid[0].isEmpty() || uuid[0].equals("-")) {
+            throw new IOException("btrfs didn't report the UUID of " + subvolume);
+        }
+        return uuid[0];
+    }
+
+    /*
+     * This method returns the current generation of the snapshot.
+     * 
+     * Called by:
+     * - Snapshot.sendSnapshots()
+     */
+    public long getGeneration(String snapshotPath) throws IOException {
+        long[] generation = new long[] {-1};
+        runFindNew(snapshotPath, MAX_GENERATION, line -> {
+            if (line.startsWith("transid marker was ")) {
+                generation[0] = Long.parseLong(line.substring("transid marker was ".length()).trim());
+            }
+        });
+
+        if (generation[0] < 0) {
+            throw new IOException("btrfs didn't report the generation of " + snapshotPath);
+        }
+        return generation[0];
+    }
+
+    /*
+     * This method returns the files of the snapshot changed after the specified generation.
+     * 
+     * Called by:
+     * - Snapshot.sendSnapshots()
+     */
+    public List<File> findChangedFiles(String snapshotPath, long lastGeneration) throws IOException {
+        // A file with many extents is reported once for each of them.
+        Set<String> paths = new LinkedHashSet<>();
+
+        // find-new also reports what was written in lastGeneration itself, which has already been uploaded.
+        runFindNew(snapshotPath, Long.toUnsignedString(lastGeneration + 1), line -> {
+            String path = parseFindNewLine(line);
+            if (path != null) {
+                paths.add(path);
+            }
+        });
+
+        // btrfs stores the target of a link as an extent, so the changed links are reported too.
+        // They must not be followed, an absolute link would lead out of the snapshot.
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(snapshotPath, path);
+            if (Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS) || Files.isSymbolicLink(file.toPath())) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+
+    /*
+     * This method reads the state of the last upload of every subvolume.
+     * 
+     * Called by:
+     * - Snapshot.takeSnapshot()
+     */
+    public Map<String, UploadState> readGenerations() {
+        Map<String, UploadState> states = new LinkedHashMap<String, UploadState>();
+        if (!new File(generationsFile).exists()) {
+            return states;
+        }
+
+        Yaml yaml = new Yaml();
+        try (InputStream stream = Files.newInputStream(Paths.get(generationsFile))) {
+            Map<String, Object> data = yaml.load(stream);
+            if (data != null) {
+                for (Map.Entry<String, Object> entry : data.entrySet()) {
+                    // The old files only have the generation, without the UUID it can't be trusted.
+                    if (entry.getValue() instanceof Map) {
+                        Map<?, ?> state = (Map<?, ?>) entry.getValue();
+                        states.put(entry.getKey(), new UploadState(((Number) state.get("generation")).longValue(),
+                                                                   (String) state.get("uuid"),
+                                                                   LocalDate.parse((String) state.get("last_full_upload"))));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // A missing or broken file only means that the next upload will be a full one.
+            states.clear();
+        }
+
+        return states;
+    }
+
+    /*
+     * This method saves the state of the last upload of every subvolume.
+     * 
+     * Called by:
+     * - Snapshot.takeSnapshot()
+     */
+    public void writeGenerations(Map<String, UploadState> states) throws IOException {
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, UploadState> entry : states.entrySet()) {
+            Map<String, Object> state = new LinkedHashMap<String, Object>();
+            state.put("generation", entry.getValue().generation);
+            state.put("uuid", entry.getValue().uuid);
+            state.put("last_full_upload", entry.getValue().lastFullUpload.toString());
+            data.put(entry.getKey(), state);
+        }
+
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        Yaml yaml = new Yaml(options);
+        try (FileWriter writer = new FileWriter(generationsFile)) {
+            yaml.dump(data, writer);
+        }
+    }
+
+    /*
+     * This method checks if the next upload of a subvolume has to be a full one:
+     * when there isn't any previous upload, when the subvolume has been created again (its UUID changed)
+     * or when the last full upload is fullUploadDays old.
+     * 
+     * Called by:
+     * - Snapshot.sendSnapshots()
+     */
+    public static boolean needsFullUpload(UploadState last, String uuid, LocalDate today, int fullUploadDays) {
+        return last == null
+               || !uuid.equals(last.uuid)
+               || !today.isBefore(last.lastFullUpload.plusDays(fullUploadDays));
+    }
+
+    /*
+     * This method extracts the path from a line of the find-new output, which looks like:
+     * "inode 257 file offset 0 len 4096 disk start 0 offset 0 gen 8 flags NONE path/to/file"
+     * 
+     * Called by:
+     * - findChangedFiles()
+     */
+    String parseFindNewLine(String line) {
+        if (!line.startsWith("inode ")) {
+            return null;
+        }
+
+        int flagsIndex = line.indexOf(" flags ");
+        if (flagsIndex < 0) {
+            return null;
+        }
+
+        // The path is everything after the flags, so it can contain spaces.
+        int pathIndex = line.indexOf(' ', flagsIndex + " flags ".length());
+        return pathIndex < 0 ? null : line.substring(pathIndex + 1);
+    }
+
+    /*
+     * This method runs "btrfs subvolume find-new" and passes every line of its output to the consumer.
+     * 
+     * Called by:
+     * - getGeneration()
+     * - findChangedFiles()
+     */
+    private void runFindNew(String snapshotPath, String generation, Consumer<String> consumer) throws IOException {
+        runBtrfs(List.of("btrfs", "subvolume", "find-new", snapshotPath, generation), consumer);
+    }
+
+    /*
+     * This method runs a btrfs command and passes every line of its output to the consumer.
+     * 
+     * Called by:
+     * - getSubvolumeUuid()
+     * - runFindNew()
+     */
+    private void runBtrfs(List<String> command, Consumer<String> consumer) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.accept(line);
+            }
+        }
+
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("btrfs " + command.get(2) + " exited with code " + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running btrfs " + command.get(2), e);
+        }
+    }
+
+
+    /*
+     * This class is responsible for the state of the last upload of a subvolume:
+     * its generation, the UUID of the subvolume and the date of the last full upload.
+     * 
+     * Called by:
+     * - readGenerations()
+     * - writeGenerations()
+     * - Snapshot.sendSnapshots()
+     */
+    public static class UploadState {
+        public final long generation;
+        public final String uuid;
+        public final LocalDate lastFullUpload;
+
+        public UploadState(long generation, String uuid, LocalDate lastFullUpload) {
+            this.generation = generation;
+            this.uuid = uuid;
+            this.lastFullUpload = lastFullUpload;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.snappy.client.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.snappy.client.server.FileChecksum;
+
+/*
+ * This class is responsible for the fingerprints of the local files, saved in /etc/snappy/fingerprints.
+ * A fingerprint is the size, the last modified time, the ctime, the inode and the CRC32C of a file.
+ * As long as they don't change, its CRC32C is taken from here instead of reading the whole file again.
+ * The last modified time alone can't be trusted, it can be set by anyone (e.g. "cp -p", "touch -r"),
+ * while the ctime is always set by the kernel and the inode changes when the file is replaced.
+ * The uploads fill it too: a btrfs snapshot keeps the inode, the last modified time and the ctime of every file,
+ * so the fingerprint of the file of the snapshot is the one of the live file, as long as it isn't changed.
+ */
+public class FingerprintCache {
+    private static final String FINGERPRINTS_FILE = "/etc/snappy/fingerprints";
+
+    // Every path is mapped to {size, mtime, ctime, inode, crc32c}.
+    private final HashMap<String, long[]> fingerprints;
+    private final byte[] buffer = new byte[1024 * 1024];
+
+    /*
+     * This constructor is responsible for loading the saved fingerprints.
+     * A missing or broken file only means that the files will be read again.
+     * 
+     * Called by:
+     * - Snapshot.restore()
+     * - Snapshot.takeSnapshot()
+     */
+    @SuppressWarnings("unchecked")
+    public FingerprintCache() {
+        HashMap<String, long[]> saved = null;
+        if (Files.exists(Paths.get(FINGERPRINTS_FILE))) {
+            try (ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(FINGERPRINTS_FILE))))) {
+                saved = (HashMap<String, long[]>) inputStream.readObject();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                saved = null;
+            }
+        }
+
+        fingerprints = saved == null ? new HashMap<String, long[]>() : saved;
+    }
+
+    /*
+     * This method returns the CRC32C of the file, from the cache if the file didn't change.
+     * 
+     * Called by:
+     * - Snapshot.isUnchanged()
+     */
+    public long getCrc(Path file) throws IOException {
+        long[] current = readFingerprint(file);
+        long[] fingerprint = fingerprints.get(file.toString());
+        // The fingerprints saved by the older versions have only the size and the last modified time.
+        if (fingerprint != null && fingerprint.length == 5 && Arrays.equals(fingerprint, 0, 4, current, 0, 4)) {
+            return fingerprint[4];
+        }
+
+        FileChecksum checksum = new FileChecksum(null);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                checksum.update(buffer, 0, length);
+            }
+        }
+
+        fingerprints.put(file.toString(), new long[] {current[0], current[1], current[2], current[3], checksum.getCrc()});
+        return checksum.getCrc();
+    }
+
+    /*
+     * This method saves the fingerprint of a file, as it is on the disk now.
+     * 
+     * Called by:
+     * - Snapshot.restoreInPlace()
+     * - Snapshot.isUnchanged()
+     */
+    public void put(Path file, long crc) throws IOException {
+        long[] current = readFingerprint(file);
+        fingerprints.put(file.toString(), new long[] {current[0], current[1], current[2], current[3], crc});
+    }
+
+    /*
+     * This method saves the fingerprint of a file of the snapshot under the path of the live file.
+     * The uploads run concurrently, so it's synchronized.
+     * 
+     * Called by:
+     * - Tcp.sendFile()
+     */
+    public synchronized void put(Path liveFile, Path snapshotFile, long crc) throws IOException {
+        long[] current = readFingerprint(snapshotFile);
+        fingerprints.put(liveFile.toString(), new long[] {current[0], current[1], current[2], current[3], crc});
+    }
+
+    /*
+     * This method removes the fingerprint of a deleted file.
+     * 
+     * Called by:
+     * - Snapshot.deleteExtraFiles()
+     */
+    public void remove(Path file) {
+        fingerprints.remove(file.toString());
+    }
+
+    /*
+     * This method reads the size, the last modified time, the ctime and the inode of the file.
+     * 
+     * Called by:
+     * - getCrc()
+     * - put()
+     */
+    private long[] readFingerprint(Path file) throws IOException {
+        Map<String, Object> attributes = Files.readAttributes(file, "unix:size,lastModifiedTime,ctime,ino", LinkOption.NOFOLLOW_LINKS);
+
+        return new long[] {(long) attributes.get("size"),
+                           ((FileTime) attributes.get("lastModifiedTime")).toMillis(),
+                           ((FileTime) attributes.get("ctime")).to(TimeUnit.NANOSECONDS),
+                           (long) attributes.get("ino")};
+    }
+
+    /*
+     * This method writes the fingerprints to the disk.
+     * 
+     * Called by:
+     * - Snapshot.restore()
+     * - Snapshot.takeSnapshot()
+     */
+    public void save() throws IOException {
+        // The fingerprints are written to a temporary file first, so a crash never leaves a broken file.
+        Path temporary = Paths.get(FINGERPRINTS_FILE + ".tmp");
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            outputStream.writeObject(fingerprints);
+        }
+        Files.move(temporary, Paths.get(FINGERPRINTS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
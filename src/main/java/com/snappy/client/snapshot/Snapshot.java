@@ -1,24 +1,52 @@
 package com.snappy.client.snapshot;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.yaml.snakeyaml.Yaml;
 
 import com.snappy.client.ErrorManager;
+import com.snappy.client.server.BufferPool;
+import com.snappy.client.server.FileChecksum;
+import com.snappy.client.server.PathFilter;
+import com.snappy.client.server.RestoreConnection;
 import com.snappy.client.server.Tcp;
 
 
 /*
  * This class is responsible for the creation of the snapshot.
- * It can take a snapshot of the subvolume specified in the config file.
- * It will also manage the snapshot list received from the server and restore the system to a previous state (hopefully).
+ * It can take a snapshot of every subvolume specified in the config file and upload them concurrently.
+ * It can also restore the whole snapshot, or only a file or directory of it, fetching only the chunks needed.
+ * It will also manage the snapshot list received from the server.
  */
 public class Snapshot {
+    private static final Path SNAPPY_DIRECTORY = Paths.get("/etc/snappy");
     
     public Snapshot() {}
 
@@ -32,42 +60,129 @@ public class Snapshot {
         System.out.println("Taking snapshot...");
         takeSnapshot();
     }
+
+    /*
+     * This method is responsible for restoring the snapshot.
+     * The path is the file or directory to restore, null to restore the whole snapshot.
+     * In place, only the files that differ from the snapshot are downloaded and the files that
+     * aren't in the snapshot are deleted, otherwise every file of the snapshot is downloaded.
+     * 
+     * Called by:
+     * - CommandLine.parse()
+     */
+    public void restore(String snapshotName, String path, boolean inPlace) {
+        System.out.println("Restoring " + (path == null ? "" : path + " from ") + snapshotName + (inPlace ? " in place" : "") + "...");
+
+        long cacheSize = ((Number) readConfig(Config.CACHE_SIZE)).longValue() * 1024 * 1024;
+        BlockCache cache = new BlockCache("/etc/snappy/cache", cacheSize);
+
+        try (RestoreConnection connection = new RestoreConnection((String) readConfig(Config.IP), (int) readConfig(Config.PORT))) {
+            Map<?, ?> manifest = connection.fetchManifest(snapshotName);
+            if (inPlace) {
+                FingerprintCache fingerprints = new FingerprintCache();
+                try {
+                    restoreInPlace(snapshotName, path, manifest, cache, connection, fingerprints, getPathFilter(manifest));
+                } finally {
+                    fingerprints.save();
+                }
+            } else {
+                int restored = restoreSubtree(snapshotName, path, manifest, cache, connection);
+                System.out.println("Restored " + restored + " files.");
+            }
+        } catch (IOException e) {
+            ErrorManager.exitWithError("Something went wrong while restoring the snapshot: " + e.getMessage(), e);
+        }
+    }
     
     /*
-     * This method manages all the methods to create a snapshot and sends it to the server.
+     * This method manages all the methods to create the snapshots and sends them to the server.
+     * All the snapshots are taken first, so that they are as close in time as possible,
+     * then they are uploaded concurrently.
      * 
      * Called by:
      * - take()
      */
     private void takeSnapshot() {
-        String subvolume = (String) readConfig(Config.SUBVOLUME);
-        String snapshotName = "snappy-" + LocalDate.now().toString();
+        @SuppressWarnings("unchecked")
+        List<String> subvolumes = (List<String>) readConfig(Config.SUBVOLUMES);
+        String date = LocalDate.now().toString();
+
+        Map<String, String> snapshotNames = new LinkedHashMap<String, String>();
+        for (String subvolume : subvolumes) {
+            String snapshotName = "snappy-" + date + "-" + getSubvolumeLabel(subvolume);
+            // The same subvolume written twice (e.g. "/home" and "/home/") would be snapshotted twice under the same name.
+            if (snapshotNames.containsValue(snapshotName)) {
+                String message = "The subvolume " + subvolume + " is listed twice in the config file.";
+                ErrorManager.exitWithError(message, new IllegalArgumentException(message));
+            }
+            snapshotNames.put(subvolume, snapshotName);
+        }
 
-        createSubvolume(subvolume);
         emptySnapshotDirectory();
-        createSnapshot(subvolume, snapshotName);
-        sendSnapshot((String) readConfig(Config.IP), (int) readConfig(Config.PORT), "/etc/snappy/snapshots/" + snapshotName);
+        Map<String, String> failures = createSnapshots(snapshotNames);
+
+        // Only the subvolumes that have been snapshotted successfully are uploaded.
+        Map<String, String> snapshotPaths = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : snapshotNames.entrySet()) {
+            if (!failures.containsKey(entry.getKey())) {
+                snapshotPaths.put(entry.getKey(), "/etc/snappy/snapshots/" + entry.getValue());
+            }
+        }
+
+        // The generations are only kept when incremental uploads are enabled, otherwise every upload is a full one.
+        ChangeDetector changeDetector = new ChangeDetector();
+        boolean incremental = (boolean) readConfig(Config.INCREMENTAL);
+        Map<String, ChangeDetector.UploadState> generations = incremental ? changeDetector.readGenerations() : null;
+
+        // The fingerprint cache holds an entry for every file, so it's only filled by the upload when the memory isn't bounded.
+        int memoryBudget = (int) readConfig(Config.MEMORY_BUDGET);
+        FingerprintCache fingerprints = memoryBudget > 0 ? null : new FingerprintCache();
+
+        failures.putAll(sendSnapshots((String) readConfig(Config.IP),
+                                      (int) readConfig(Config.PORT),
+                                      (int) readConfig(Config.MAX_UPLOADS),
+                                      (String) readConfig(Config.STRONG_HASH),
+                                      createBufferPool(memoryBudget, (int) readConfig(Config.MAX_UPLOADS)),
+                                      createPathFilter(),
+                                      fingerprints,
+                                      (int) readConfig(Config.FULL_UPLOAD_DAYS),
+                                      snapshotPaths,
+                                      generations));
+
+        if (fingerprints != null) {
+            try {
+                fingerprints.save();
+            } catch (IOException e) {
+                ErrorManager.reportError("Something went wrong while saving the fingerprints. The next in-place restore will read every file.", e);
+            }
+        }
+
+        if (incremental) {
+            try {
+                changeDetector.writeGenerations(generations);
+            } catch (IOException e) {
+                ErrorManager.reportError("Something went wrong while saving the snapshot generations. The next upload will be a full one.", e);
+            }
+        }
+        reportResults(subvolumes, failures);
     }
 
     /*
-     * This method creates the subvolume where the snapshot will be taken.
+     * This method returns the label used to name the snapshot of a subvolume.
+     * The root subvolume is labeled "root", the others use their path with "/" replaced by "-".
+     * The "%" and "-" already in the path are escaped first, so two subvolumes never get the same label
+     * (e.g. "/a/b" is "a-b" and "/a-b" is "a%2Db").
      * 
      * Called by:
      * - takeSnapshot()
      */
-    private void createSubvolume(String subvolume) {
-        ProcessBuilder processBuilder = new ProcessBuilder("btrfs",
-                                                           "subvolume",
-                                                           "create",
-                                                           subvolume,
-                                                           "/etc/snappy/snapshots/snappy-" + LocalDate.now().toString());
+    static String getSubvolumeLabel(String subvolume) {
+        String label = subvolume.replaceAll("^/+|/+$", "")
+                                .replace("%", "%25")
+                                .replace("-", "%2D")
+                                .replaceAll("/+", "-");
 
-        try {
-            Process process = processBuilder.start();
-            process.waitFor();
-        } catch (IOException | InterruptedException e) {
-            ErrorManager.exitWithError("Something went wrong while creating the subvolume. Report this error to the developer.", e);
-        }
+        return label.isEmpty() ? "root" : label;
     }
 
     /*
@@ -79,12 +194,34 @@ public class Snapshot {
     private Object readConfig(Config config) {
         Map<String, Object> data = readYaml("/etc/snappy/config.yml");
         switch (config) {
-            case SUBVOLUME:
-                return data.get("default_subvolume");
+            case SUBVOLUMES:
+                // Old config files only have a single default subvolume.
+                if (data.get("subvolumes") != null) {
+                    return data.get("subvolumes");
+                }
+                return List.of(data.get("default_subvolume"));
             case IP:
                 return data.get("server_ip");
             case PORT:
                 return data.get("server_port");
+            case MAX_UPLOADS:
+                return data.getOrDefault("max_concurrent_uploads", 4);
+            case INCREMENTAL:
+                return data.getOrDefault("incremental", false);
+            case FULL_UPLOAD_DAYS:
+                return data.getOrDefault("full_upload_days", 7);
+            case MEMORY_BUDGET:
+                return data.getOrDefault("memory_budget_mb", 0);
+            case INCLUDE:
+                // An empty "include:" is read as null.
+                return data.get("include") == null ? List.of() : data.get("include");
+            case EXCLUDE:
+                return data.get("exclude") == null ? List.of() : data.get("exclude");
+            case CACHE_SIZE:
+                return data.getOrDefault("cache_size_mb", 256);
+            case STRONG_HASH:
+                // Only the CRC32C is computed if there isn't any strong hash.
+                return data.get("strong_hash");
             default:
                 return null;
         }
@@ -108,6 +245,8 @@ public class Snapshot {
 
     /*
      * This method empties the snapshot directory.
+     * The snapshots of the previous run are btrfs subvolumes, so they are deleted with btrfs:
+     * they are never empty, a plain delete would fail on them.
      * 
      * Called by:
      * - takeSnapshot()
@@ -118,7 +257,11 @@ public class Snapshot {
         try {
             try (var directoryStream = Files.newDirectoryStream(Paths.get(path))) {
                 for (var file : directoryStream) {
-                    Files.delete(file);
+                    if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                        deleteSubvolume(file);
+                    } else {
+                        Files.delete(file);
+                    }
                 }
             }
         } catch (IOException e) {
@@ -127,35 +270,706 @@ public class Snapshot {
     }
 
     /*
-     * This method creates the snapshot and saves it in /etc/snappy/snapshots.
+     * This method deletes a snapshot of a previous run with "btrfs subvolume delete".
+     * 
+     * Called by:
+     * - emptySnapshotDirectory()
+     */
+    private void deleteSubvolume(Path snapshot) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder("btrfs", "subvolume", "delete", snapshot.toString());
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        // The output is read, otherwise btrfs could block on a full pipe.
+        String output = new String(process.getInputStream().readAllBytes());
+
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("btrfs subvolume delete " + snapshot + " exited with code " + process.exitValue() + ": " + output.trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deleting " + snapshot, e);
+        }
+    }
+
+    /*
+     * This method creates the snapshots and saves them in /etc/snappy/snapshots.
+     * The btrfs processes are all started before waiting for any of them, so the snapshots are taken at nearly the same moment.
+     * It returns the subvolumes whose snapshot failed, mapped to the reason.
+     * 
+     * Called by:
+     * - takeSnapshot()
+     */
+    private Map<String, String> createSnapshots(Map<String, String> snapshotNames) {
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        Map<String, Process> processes = new LinkedHashMap<String, Process>();
+
+        for (Map.Entry<String, String> entry : snapshotNames.entrySet()) {
+            ProcessBuilder processBuilder = new ProcessBuilder("btrfs",
+                                                               "subvolume",
+                                                               "snapshot",
+                                                               entry.getKey(),
+                                                               "/etc/snappy/snapshots/" + entry.getValue());
+            try {
+                processes.put(entry.getKey(), processBuilder.start());
+            } catch (IOException e) {
+                failures.put(entry.getKey(), "could not start btrfs (" + e.getMessage() + ")");
+            }
+        }
+
+        for (Map.Entry<String, Process> entry : processes.entrySet()) {
+            try {
+                if (entry.getValue().waitFor() != 0) {
+                    failures.put(entry.getKey(), "btrfs exited with code " + entry.getValue().exitValue());
+                }
+            } catch (InterruptedException e) {
+                ErrorManager.exitWithError("Something went wrong while taking the snapshots. Report this error to the developer.", e);
+            }
+        }
+
+        return failures;
+    }
+
+    /*
+     * This method creates the pool of the I/O buffers of the uploads.
+     * With a memory budget, the launcher gives half of it to the heap and half to the direct memory (see template.sh).
+     * The pool takes at most half of the direct memory, the rest is left to the temporary buffers of the JDK,
+     * and never more buffers than the uploads running at the same time, since each of them holds only one.
+     * The uploads wait when they are all in use. Without a budget (0), the pool allocates what it needs.
+     * 
+     * Called by:
+     * - takeSnapshot()
+     */
+    private BufferPool createBufferPool(int memoryBudget, int maxUploads) {
+        if (memoryBudget <= 0) {
+            return new BufferPool(0);
+        }
+
+        long bufferBudget = (long) memoryBudget * 1024 * 1024 / 4;
+        return new BufferPool((int) Math.max(1, Math.min(bufferBudget / BufferPool.BUFFER_SIZE, maxUploads)));
+    }
+
+    /*
+     * This method compiles the include and exclude rules of the config file, shared by all the uploads.
+     * 
+     * Called by:
+     * - takeSnapshot()
+     * - getPathFilter()
+     */
+    @SuppressWarnings("unchecked")
+    private PathFilter createPathFilter() {
+        return new PathFilter((List<String>) readConfig(Config.INCLUDE), (List<String>) readConfig(Config.EXCLUDE));
+    }
+
+    /*
+     * This method returns the rules the snapshot has been uploaded with, saved in the manifest.
+     * The manifests of older uploads don't have them, the rules of the config file are used then.
+     * 
+     * Called by:
+     * - restore()
+     */
+    private PathFilter getPathFilter(Map<?, ?> manifest) {
+        if (manifest.get("include") == null || manifest.get("exclude") == null) {
+            return createPathFilter();
+        }
+
+        return new PathFilter(getList(manifest, "include").stream().map(String.class::cast).toList(),
+                              getList(manifest, "exclude").stream().map(String.class::cast).toList());
+    }
+
+    /*
+     * This method sends the snapshots to the server.
+     * The uploads run concurrently, but never more than maxUploads at the same time,
+     * and they all take their buffers from the same pool and save the fingerprints of their files in the same cache (if not null).
+     * With incremental uploads (generations isn't null), a subvolume with a known generation only sends
+     * the files changed since then, and its generation is updated once the upload succeeds.
+     * A full upload is done anyway if the last one is fullUploadDays old, or if the subvolume isn't the same anymore.
+     * It returns the subvolumes whose upload failed, mapped to the reason.
      * 
      * Called by:
      * - takeSnapshot()
      */
-    private void createSnapshot(String subvolume, String snapshotName) {
-        ProcessBuilder processBuilder = new ProcessBuilder("btrfs",
-                                                           "subvolume",
-                                                           "snapshot",
-                                                           subvolume,
-                                                           "/etc/snappy/snapshots/" + snapshotName);
+    private Map<String, String> sendSnapshots(String host, int port, int maxUploads, String strongHash, BufferPool bufferPool, PathFilter pathFilter, FingerprintCache fingerprints, int fullUploadDays, Map<String, String> snapshotPaths, Map<String, ChangeDetector.UploadState> generations) {
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        if (snapshotPaths.isEmpty()) {
+            return failures;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxUploads, snapshotPaths.size())));
+        Map<String, Future<ChangeDetector.UploadState>> uploads = new LinkedHashMap<String, Future<ChangeDetector.UploadState>>();
+        ChangeDetector changeDetector = new ChangeDetector();
+        LocalDate today = LocalDate.now();
+
+        for (Map.Entry<String, String> entry : snapshotPaths.entrySet()) {
+            ChangeDetector.UploadState last = generations == null ? null : generations.get(entry.getKey());
+            uploads.put(entry.getKey(), executor.submit(() -> {
+                Tcp tcp = new Tcp(host, port, strongHash, bufferPool, pathFilter, fingerprints);
+                if (generations == null) {
+                    tcp.send(entry.getKey(), entry.getValue());
+                    return null;
+                }
+
+                long generation = changeDetector.getGeneration(entry.getValue());
+                String uuid = changeDetector.getSubvolumeUuid(entry.getKey());
+                boolean full = ChangeDetector.needsFullUpload(last, uuid, today, fullUploadDays);
+                if (full) {
+                    tcp.send(entry.getKey(), entry.getValue());
+                } else {
+                    tcp.sendChanges(entry.getKey(), entry.getValue(), changeDetector.findChangedFiles(entry.getValue(), last.generation), last.generation);
+                }
+                return new ChangeDetector.UploadState(generation, uuid, full ? today : last.lastFullUpload);
+            }));
+        }
+
+        for (Map.Entry<String, Future<ChangeDetector.UploadState>> entry : uploads.entrySet()) {
+            try {
+                ChangeDetector.UploadState state = entry.getValue().get();
+                if (generations != null) {
+                    generations.put(entry.getKey(), state);
+                }
+            } catch (ExecutionException e) {
+                ErrorManager.reportError("Upload of " + entry.getKey() + " failed.", e.getCause());
+                failures.put(entry.getKey(), "upload failed (" + e.getCause().getMessage() + ")");
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                ErrorManager.exitWithError("Something went wrong while sending the snapshots. Report this error to the developer.", e);
+            }
+        }
+        executor.shutdown();
+
+        return failures;
+    }
+
+    /*
+     * This method restores the folders and files of the manifest that are under the specified path.
+     * It returns the number of files restored.
+     * 
+     * Called by:
+     * - restore()
+     */
+    private int restoreSubtree(String snapshotName, String path, Map<?, ?> manifest, BlockCache cache, RestoreConnection connection) throws IOException {
+        Path subvolume = Paths.get((String) manifest.get("subvolume")).normalize();
+        Path snapshotPath = Paths.get((String) manifest.get("snapshot_path"));
+        Path target = getRestoreTarget(snapshotName, path, subvolume);
+        // The folders already checked by createFolders().
+        Set<Path> folders = new HashSet<>();
+
+        boolean found = false;
+        for (Object folder : (List<?>) manifest.get("folders")) {
+            Map<?, ?> entry = getFolderEntry(folder);
+            Path localFolder = getLocalPath(subvolume, snapshotPath, (String) entry.get("path"));
+            if (isRestored(localFolder, target)) {
+                createFolders(subvolume, target, localFolder, folders);
+                setAttributes(localFolder, entry, localFolder);
+                found = true;
+            }
+        }
+
+        int restored = 0;
+        for (Object file : (List<?>) manifest.get("files")) {
+            Map<?, ?> entry = (Map<?, ?>) file;
+            Path localFile = getLocalPath(subvolume, snapshotPath, (String) entry.get("path"));
+            if (isRestored(localFile, target)) {
+                preparePath(subvolume, target, localFile, folders);
+                restoreFile(snapshotName, entry, localFile, cache, connection);
+                restored++;
+            }
+        }
+
+        for (Object link : getList(manifest, "links")) {
+            Map<?, ?> entry = (Map<?, ?>) link;
+            Path localLink = getLocalPath(subvolume, snapshotPath, (String) entry.get("path"));
+            if (isRestored(localLink, target)) {
+                preparePath(subvolume, target, localLink, folders);
+                restoreLink(entry, localLink);
+                restored++;
+            }
+        }
+
+        if (!found && restored == 0 && !target.equals(subvolume)) {
+            throw new IOException(path + " is not in " + snapshotName);
+        }
+        return restored;
+    }
+
+    /*
+     * This method makes the files under the specified path identical to the snapshot.
+     * A file is downloaded only if its size or its CRC32C differ from the manifest,
+     * and the files and folders that aren't in the snapshot are deleted.
+     * The symbolic links are put back as links, and the paths the upload couldn't read are left alone.
+     * The paths excluded by the rules of the upload aren't in the snapshot either, they are left alone too.
+     * 
+     * Called by:
+     * - restore()
+     */
+    private void restoreInPlace(String snapshotName, String path, Map<?, ?> manifest, BlockCache cache, RestoreConnection connection, FingerprintCache fingerprints, PathFilter pathFilter) throws IOException {
+        Path subvolume = Paths.get((String) manifest.get("subvolume")).normalize();
+        Path snapshotPath = Paths.get((String) manifest.get("snapshot_path"));
+        Path target = getRestoreTarget(snapshotName, path, subvolume);
+
+        // Everything under the target that isn't in here is deleted at the end.
+        Set<Path> expected = new HashSet<>();
+        // The folders already checked by createFolders().
+        Set<Path> folders = new HashSet<>();
 
+        for (Object folder : (List<?>) manifest.get("folders")) {
+            Map<?, ?> entry = getFolderEntry(folder);
+            Path localFolder = getLocalPath(subvolume, snapshotPath, (String) entry.get("path"));
+            if (isRestored(localFolder, target)) {
+                createFolders(subvolume, target, localFolder, folders);
+                setAttributes(localFolder, entry, localFolder);
+                expected.add(localFolder);
+            }
+        }
+
+        int restored = 0;
+        int unchanged = 0;
+        for (Object file : (List<?>) manifest.get("files")) {
+            Map<?, ?> entry = (Map<?, ?>) file;
+            Path localFile = getLocalPath(subvolume, snapshotPath, (String) entry.get("path"));
+            if (!isRestored(localFile, target)) {
+                continue;
+            }
+
+            expected.add(localFile);
+            preparePath(subvolume, target, localFile, folders);
+            if (isUnchanged(localFile, entry, fingerprints)) {
+                unchanged++;
+            } else {
+                restoreFile(snapshotName, entry, localFile, cache, connection);
+                fingerprints.put(localFile, ((Number) entry.get("crc32c")).longValue());
+                restored++;
+            }
+        }
+
+        for (Object link : getList(manifest, "links")) {
+            Map<?, ?> entry = (Map<?, ?>) link;
+            Path localLink = getLocalPath(subvolume, snapshotPath, (String) entry.get("path"));
+            if (!isRestored(localLink, target)) {
+                continue;
+            }
+
+            expected.add(localLink);
+            preparePath(subvolume, target, localLink, folders);
+            if (restoreLink(entry, localLink)) {
+                restored++;
+            } else {
+                unchanged++;
+            }
+        }
+
+        if (expected.isEmpty() && !target.equals(subvolume)) {
+            throw new IOException(path + " is not in " + snapshotName);
+        }
+
+        Set<Path> skipped = new HashSet<>();
+        for (Object skippedPath : getList(manifest, "skipped")) {
+            skipped.add(getLocalPath(subvolume, snapshotPath, (String) skippedPath));
+        }
+
+        int deleted = deleteExtraFiles(target, expected, skipped, pathFilter, fingerprints);
+        System.out.println("Restored " + restored + " files, " + unchanged + " were already up to date, " + deleted + " have been deleted.");
+    }
+
+    /*
+     * This method returns the absolute path to restore, checking that it's in the subvolume of the snapshot.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private Path getRestoreTarget(String snapshotName, String path, Path subvolume) throws IOException {
+        Path target = path == null ? subvolume : Paths.get(path).toAbsolutePath().normalize();
+        if (!target.startsWith(subvolume)) {
+            throw new IOException(path + " is not in " + subvolume + ", the subvolume of " + snapshotName);
+        }
+
+        return target;
+    }
+
+    /*
+     * This method returns a list of the manifest, or an empty list if the manifest is older than it.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     * - getPathFilter()
+     */
+    private List<?> getList(Map<?, ?> manifest, String key) {
+        Object list = manifest.get(key);
+
+        return list == null ? List.of() : (List<?>) list;
+    }
+
+    /*
+     * This method returns the entry of a folder of the manifest, with its "path", "mode", "uid" and "gid".
+     * The manifests of older uploads only hold the path of the folders, their entry has no mode then.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private Map<?, ?> getFolderEntry(Object folder) {
+        return folder instanceof Map ? (Map<?, ?>) folder : Map.of("path", folder);
+    }
+
+    /*
+     * This method returns the local path of a path of the manifest, the one it had before the snapshot.
+     * The path is normalized, so a path of the manifest with ".." can't go out of the subvolume.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private Path getLocalPath(Path subvolume, Path snapshotPath, String path) throws IOException {
+        Path localPath;
         try {
-            Process process = processBuilder.start();
-            process.waitFor();
-        } catch (IOException | InterruptedException e) {
-            ErrorManager.exitWithError("Something went wrong while taking the snapshot. Report this error to the developer.", e);
+            localPath = subvolume.resolve(snapshotPath.relativize(Paths.get(path))).normalize();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The manifest holds an invalid path: " + path, e);
+        }
+
+        if (!localPath.startsWith(subvolume)) {
+            throw new IOException("The manifest holds a path out of " + subvolume + ": " + path);
+        }
+        return localPath;
+    }
+
+    /*
+     * This method checks if a path of the snapshot has to be restored.
+     * The path must be normalized, otherwise a ".." could pass the check.
+     * The Snappy directory is never restored, it would overwrite the config and the cache in use.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private boolean isRestored(Path localPath, Path target) {
+        return localPath.startsWith(target) && !localPath.startsWith(SNAPPY_DIRECTORY);
+    }
+
+    /*
+     * This method makes sure that every folder from the subvolume down to the specified one is a real folder,
+     * so that nothing is restored through a symbolic link (e.g. a link to /etc put where a folder of the snapshot was).
+     * A symbolic link or a file found in place of a folder under the target is replaced by a folder,
+     * above the target it's left alone and the restore fails, since it isn't part of what is restored.
+     * The folders already checked are kept in the set, so every folder is only checked once.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     * - preparePath()
+     */
+    private void createFolders(Path subvolume, Path target, Path folder, Set<Path> checked) throws IOException {
+        if (checked.contains(folder)) {
+            return;
+        }
+
+        if (folder.equals(subvolume)) {
+            if (!Files.isDirectory(subvolume)) {
+                throw new IOException("The subvolume " + subvolume + " is not a folder");
+            }
+        } else {
+            createFolders(subvolume, target, folder.getParent(), checked);
+            if (!Files.isDirectory(folder, LinkOption.NOFOLLOW_LINKS)) {
+                if (Files.exists(folder, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!folder.startsWith(target)) {
+                        throw new IOException(folder + " is not a folder, nothing can be restored under it");
+                    }
+                    Files.delete(folder);
+                }
+                Files.createDirectory(folder);
+            }
+        }
+        checked.add(folder);
+    }
+
+    /*
+     * This method prepares the restore of a file or a link: its folders are created like the folders of the snapshot,
+     * and a folder found in its place is deleted with all its content.
+     * The content of the folder is deleted without following the links, and never in another filesystem.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private void preparePath(Path subvolume, Path target, Path localPath, Set<Path> folders) throws IOException {
+        createFolders(subvolume, target, localPath.getParent(), folders);
+        if (!Files.isDirectory(localPath, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (SNAPPY_DIRECTORY.startsWith(localPath)) {
+            throw new IOException(localPath + " holds " + SNAPPY_DIRECTORY + ", it can't be replaced");
+        }
+
+        Object device = Files.getAttribute(localPath, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+        Files.walkFileTree(localPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (!device.equals(Files.getAttribute(dir, "unix:dev", LinkOption.NOFOLLOW_LINKS))) {
+                    throw new IOException(dir + " is another filesystem, " + localPath + " can't be replaced");
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                folders.remove(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /*
+     * This method checks if the local file is already identical to the file of the snapshot.
+     * The CRC32C of the local file comes from the fingerprint cache whenever possible.
+     * 
+     * Called by:
+     * - restoreInPlace()
+     */
+    private boolean isUnchanged(Path localFile, Map<?, ?> entry, FingerprintCache fingerprints) throws IOException {
+        if (!Files.isRegularFile(localFile, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(localFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        long size = ((Number) entry.get("size")).longValue();
+        if (attributes.size() != size) {
+            return false;
+        }
+
+        long crc = ((Number) entry.get("crc32c")).longValue();
+        if (fingerprints.getCrc(localFile) != crc) {
+            return false;
+        }
+
+        // The content is the same, only the mode, the owner and the last modified time are put back like in the snapshot.
+        // Both change the ctime, so the fingerprint is saved again.
+        setAttributes(localFile, entry, localFile);
+        long snapshotMtime = ((Number) entry.get("mtime")).longValue();
+        if (attributes.lastModifiedTime().toMillis() != snapshotMtime) {
+            Files.setLastModifiedTime(localFile, FileTime.fromMillis(snapshotMtime));
         }
+        fingerprints.put(localFile, crc);
+        return true;
     }
 
     /*
-     * This method sends the snapshot to the server.
+     * This method deletes the files and folders under the target that aren't in the snapshot.
+     * Only regular files and folders are deleted: the symbolic links (even the ones to folders, which the walk
+     * doesn't follow), the fifos, the sockets and the devices can't be found in the snapshot, so they are left alone.
+     * The paths the upload skipped or the rules excluded are left alone too, with all their content.
+     * An excluded folder that is only walked to reach an included path keeps everything but the included paths.
+     * It doesn't go into other filesystems or other btrfs subvolumes (they have a different device),
+     * since they aren't part of the snapshot. It returns the number of files deleted.
+     * 
+     * Called by:
+     * - restoreInPlace()
+     */
+    private int deleteExtraFiles(Path target, Set<Path> expected, Set<Path> skipped, PathFilter pathFilter, FingerprintCache fingerprints) throws IOException {
+        if (!Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+            return 0;
+        }
+
+        Object device = Files.getAttribute(target, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+        int[] deleted = new int[] {0};
+
+        // The target can be anywhere in the subvolume, so the walker checks all its parents too.
+        Files.walkFileTree(target, new PathFilter.Walker(pathFilter, target, target) {
+            @Override
+            protected boolean acceptFolder(Path dir, BasicFileAttributes attributes) throws IOException {
+                return !dir.startsWith(SNAPPY_DIRECTORY)
+                       && !skipped.contains(dir)
+                       && device.equals(Files.getAttribute(dir, "unix:dev", LinkOption.NOFOLLOW_LINKS));
+            }
+
+            @Override
+            protected void visitKeptFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isRegularFile() && !expected.contains(file) && !skipped.contains(file)) {
+                    Files.delete(file);
+                    fingerprints.remove(file);
+                    deleted[0]++;
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                ErrorManager.reportError("Could not check " + file + ", it has been left as it is.", e);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            protected void leaveFolder(Path dir, boolean excluded) throws IOException {
+                if (!excluded && !dir.equals(target) && !expected.contains(dir)) {
+                    try {
+                        Files.delete(dir);
+                    } catch (DirectoryNotEmptyException notEmpty) {
+                        // It still holds a skipped filesystem or subvolume.
+                    }
+                }
+            }
+        });
+
+        return deleted[0];
+    }
+
+    /*
+     * This method restores a single file, chunk by chunk.
+     * Every chunk is checked against the CRC32C of the manifest, and the whole file against its CRC32C,
+     * before replacing the local file. The chunks are taken from the cache if possible.
+     * The file is only readable by root until it gets the mode and the owner of the snapshot.
+     * Its folder must have been prepared by preparePath().
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private void restoreFile(String snapshotName, Map<?, ?> entry, Path localFile, BlockCache cache, RestoreConnection connection) throws IOException {
+        String path = (String) entry.get("path");
+        List<?> chunks = (List<?>) entry.get("chunks");
+        long fileCrc = ((Number) entry.get("crc32c")).longValue();
+        FileChecksum checksum = new FileChecksum(null);
+
+        // The file is written next to the real one, so that it's replaced only once it's complete and verified.
+        // It's created and opened at once, a link put in its place in the meantime makes the restore fail instead of being followed.
+        Path temporary = localFile.resolveSibling("." + localFile.getFileName() + ".snappy-restore");
+        Files.deleteIfExists(temporary);
+        Set<StandardOpenOption> options = Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        try (OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(
+                 Files.newByteChannel(temporary, options, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))))) {
+            for (int index = 0; index < chunks.size(); index++) {
+                long crc = ((Number) chunks.get(index)).longValue();
+
+                // A cached chunk that doesn't match is fetched again.
+                byte[] content = cache.getChunk(snapshotName, path, fileCrc, index, crc);
+                if (content == null || FileChecksum.crcOf(content, 0, content.length) != crc) {
+                    content = connection.fetchChunk(snapshotName, path, index);
+                    if (FileChecksum.crcOf(content, 0, content.length) != crc) {
+                        throw new IOException("Chunk " + index + " of " + path + " doesn't match the manifest");
+                    }
+                    cache.putChunk(snapshotName, path, fileCrc, index, crc, content);
+                }
+
+                checksum.update(content, 0, content.length);
+                outputStream.write(content);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        if (checksum.getCrc() != fileCrc) {
+            Files.deleteIfExists(temporary);
+            throw new IOException(path + " doesn't match the checksum of the manifest");
+        }
+
+        try {
+            setAttributes(temporary, entry, localFile);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, localFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(localFile, FileTime.fromMillis(((Number) entry.get("mtime")).longValue()));
+    }
+
+    /*
+     * This method restores a symbolic link, unless the local one already has the same target.
+     * The link is created next to the real path and moved over it, like the files.
+     * Its folder must have been prepared by preparePath().
+     * It returns true if the link has been restored.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     */
+    private boolean restoreLink(Map<?, ?> entry, Path localLink) throws IOException {
+        Path linkTarget = Paths.get((String) entry.get("target"));
+        if (Files.isSymbolicLink(localLink) && Files.readSymbolicLink(localLink).equals(linkTarget)) {
+            return false;
+        }
+
+        Path temporary = localLink.resolveSibling("." + localLink.getFileName() + ".snappy-restore");
+        Files.deleteIfExists(temporary);
+        Files.createSymbolicLink(temporary, linkTarget);
+        try {
+            Files.move(temporary, localLink, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw new IOException("Could not restore the link " + localLink + ": " + e.getMessage(), e);
+        }
+        return true;
+    }
+
+    /*
+     * This method gives the file or the folder the mode and the owner it has in the snapshot.
+     * The manifests of older uploads don't have them: the ones of the local file being replaced are kept then,
+     * a new file stays only readable by root and a folder is left as it is.
+     * The owner is changed first, since changing it clears the setuid and setgid bits of the mode.
+     * 
+     * Called by:
+     * - restoreSubtree()
+     * - restoreInPlace()
+     * - isUnchanged()
+     * - restoreFile()
+     */
+    private void setAttributes(Path file, Map<?, ?> entry, Path replaced) throws IOException {
+        Map<?, ?> attributes = entry;
+        if (entry.get("mode") == null) {
+            if (!Files.isRegularFile(replaced, LinkOption.NOFOLLOW_LINKS)) {
+                return;
+            }
+            attributes = Files.readAttributes(replaced, "unix:mode,uid,gid", LinkOption.NOFOLLOW_LINKS);
+        }
+
+        Map<String, Object> current = Files.readAttributes(file, "unix:mode,uid,gid", LinkOption.NOFOLLOW_LINKS);
+        int uid = ((Number) attributes.get("uid")).intValue();
+        int gid = ((Number) attributes.get("gid")).intValue();
+        int mode = ((Number) attributes.get("mode")).intValue() & 07777;
+
+        // Only what differs is changed, an unchanged file keeps its ctime.
+        if ((int) current.get("uid") != uid) {
+            Files.setAttribute(file, "unix:uid", uid, LinkOption.NOFOLLOW_LINKS);
+        }
+        if ((int) current.get("gid") != gid) {
+            Files.setAttribute(file, "unix:gid", gid, LinkOption.NOFOLLOW_LINKS);
+        }
+        if (((int) current.get("mode") & 07777) != mode || (int) current.get("uid") != uid || (int) current.get("gid") != gid) {
+            Files.setAttribute(file, "unix:mode", mode, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    /*
+     * This method prints the result of every subvolume and exits with an error if any of them failed.
      * 
      * Called by:
      * - takeSnapshot()
      */
-    private void sendSnapshot(String host, int port, String snapshotPath) {
-        Tcp tcp = new Tcp(host, port);
-        tcp.send(snapshotPath);
+    private void reportResults(List<String> subvolumes, Map<String, String> failures) {
+        List<String> succeeded = new ArrayList<>(subvolumes);
+        succeeded.removeAll(failures.keySet());
+
+        for (String subvolume : succeeded) {
+            System.out.println(subvolume + ": OK");
+        }
+        for (Map.Entry<String, String> entry : failures.entrySet()) {
+            System.out.println(entry.getKey() + ": FAILED, " + entry.getValue());
+        }
+
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
     }
 
 
@@ -166,8 +980,16 @@ public class Snapshot {
      * - readConfig()
      */
     private enum Config {
-        SUBVOLUME,
+        SUBVOLUMES,
         IP,
-        PORT
+        PORT,
+        MAX_UPLOADS,
+        INCREMENTAL,
+        FULL_UPLOAD_DAYS,
+        STRONG_HASH,
+        MEMORY_BUDGET,
+        INCLUDE,
+        EXCLUDE,
+        CACHE_SIZE
     }
 }
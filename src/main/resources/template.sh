@@ -3,4 +3,21 @@
 
 #!/bin/bash
 
+# With a memory budget in the config file, half of it is the limit of the heap and half the limit of the direct memory.
+# Budgets under 32 MB are raised to 32 MB, the JVM can't start with less.
+# The budget only bounds the uploads (-t): a restore holds the whole manifest in memory, it would fail under the limit.
+TAKE=false
+for ARG in "$@"; do
+    if [ "$ARG" = "-t" ]; then
+        TAKE=true
+    fi
+done
+BUDGET=$(sed -n 's/^memory_budget_mb: *\([0-9][0-9]*\) *$/\1/p' /etc/snappy/config.yml 2>/dev/null)
+if [ "$TAKE" = true ] && [ -n "$BUDGET" ] && [ "$BUDGET" -gt 0 ]; then
+    if [ "$BUDGET" -lt 32 ]; then
+        BUDGET=32
+    fi
+    exec java -Xmx$((BUDGET / 2))m -XX:MaxDirectMemorySize=$((BUDGET / 2))m -jar /etc/snappy/bin/snappy.jar "$@"
+fi
+
 java -jar /etc/snappy/bin/snappy.jar "$@"
@@ -0,0 +1,212 @@
+package com.snappy.client.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Unit tests for DeltaEncoder.
+ * The encoded output is rebuilt against the previous version, like the server does, and compared with the new version.
+ */
+public class DeltaEncoderTest {
+    private static final String ALGORITHM = "MD5";
+
+    @Test
+    public void rebuildsRandomEditsExactly() throws Exception {
+        // A small buffer, so the window is moved back to the beginning of the buffer many times.
+        rebuildRandomEdits(64, 1024, 300);
+        // Literals shorter than a block, so the literal left at the end of the file has to be split.
+        rebuildRandomEdits(256, 1024, 100);
+    }
+
+    @Test
+    public void mergesConsecutiveBlocks() throws Exception {
+        byte[] previous = new byte[64 * 100];
+        new Random(1).nextBytes(previous);
+
+        Result result = encode(previous, previous.clone(), 64, 1024, 512);
+
+        assertEquals(List.of("blocks 0 100"), result.operations);
+    }
+
+    @Test
+    public void sendsFileShorterThanBlockAsLiteral() throws Exception {
+        byte[] previous = new byte[64 * 4];
+        new Random(2).nextBytes(previous);
+        byte[] current = Arrays.copyOf(previous, 10);
+
+        Result result = encode(previous, current, 64, 1024, 512);
+
+        assertEquals(List.of("literal 10"), result.operations);
+        assertArrayEquals(current, result.rebuild(previous, 64));
+    }
+
+    @Test
+    public void rejectsWeakChecksumCollisions() throws Exception {
+        int blockSize = 64;
+        byte[] previous = new byte[blockSize];
+        Arrays.fill(previous, (byte) 10);
+
+        // +1, -2, +1 on three bytes in a row keeps both halves of the weak checksum, but not the strong hash.
+        byte[] current = previous.clone();
+        current[20] += 1;
+        current[21] -= 2;
+        current[22] += 1;
+        assertEquals(weakSum(previous, 0, blockSize), weakSum(current, 0, blockSize));
+
+        Result result = encode(previous, current, blockSize, 1024, 512);
+
+        assertEquals(List.of("literal 64"), result.operations);
+        assertArrayEquals(current, result.rebuild(previous, blockSize));
+    }
+
+    // This method encodes random edits of random data and checks that they are rebuilt exactly.
+    private static void rebuildRandomEdits(int blockSize, int bufferSize, int maxLiteral) throws Exception {
+        Random random = new Random(42);
+
+        for (int trial = 0; trial < 100; trial++) {
+            byte[] previous = new byte[random.nextInt(20000)];
+            random.nextBytes(previous);
+            byte[] current = edit(previous, random);
+
+            Result result = encode(previous, current, blockSize, bufferSize, maxLiteral);
+
+            assertArrayEquals("trial " + trial, current, result.rebuild(previous, blockSize));
+            assertEquals(FileChecksum.crcOf(current, 0, current.length), result.crc);
+            for (int length : result.literalLengths) {
+                assertTrue("literal of " + length + " bytes", length > 0 && length <= maxLiteral);
+            }
+        }
+    }
+
+    // This method returns a copy of the data with a few random insertions, deletions and changes.
+    private static byte[] edit(byte[] data, Random random) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < data.length) {
+            int keep = Math.min(data.length - position, random.nextInt(3000));
+            output.write(data, position, keep);
+            position += keep;
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    byte[] inserted = new byte[random.nextInt(200)];
+                    random.nextBytes(inserted);
+                    output.write(inserted, 0, inserted.length);
+                    break;
+                case 1:
+                    position += random.nextInt(200);
+                    break;
+                default:
+                    if (position < data.length) {
+                        output.write(data[position++] ^ 0xff);
+                    }
+            }
+        }
+
+        return output.toByteArray();
+    }
+
+    // This method encodes the current version against the signatures of the whole blocks of the previous one.
+    private static Result encode(byte[] previous, byte[] current, int blockSize, int bufferSize, int maxLiteral) throws IOException, NoSuchAlgorithmException {
+        int blocks = previous.length / blockSize;
+        int[] weakSums = new int[blocks];
+        ByteArrayOutputStream strongHashes = new ByteArrayOutputStream();
+        MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+        for (int block = 0; block < blocks; block++) {
+            weakSums[block] = weakSum(previous, block * blockSize, blockSize);
+            digest.update(previous, block * blockSize, blockSize);
+            strongHashes.write(digest.digest());
+        }
+
+        Path file = Files.createTempFile("delta", ".bin");
+        try {
+            Files.write(file, current);
+
+            Result result = new Result();
+            FileChecksum checksum = new FileChecksum(null);
+            DeltaEncoder encoder = new DeltaEncoder(blockSize, weakSums, strongHashes.toByteArray(), ALGORITHM);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                encoder.encode(channel, ByteBuffer.allocateDirect(bufferSize), maxLiteral, checksum, result);
+            }
+            result.crc = checksum.getCrc();
+            return result;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // This method computes the weak checksum as described in DeltaEncoder.
+    private static int weakSum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+
+    /*
+     * This class is responsible for recording the output of the encoder.
+     */
+    private static class Result implements DeltaEncoder.Output {
+        final List<String> operations = new ArrayList<>();
+        final List<Integer> literalLengths = new ArrayList<>();
+        final ByteArrayOutputStream literals = new ByteArrayOutputStream();
+        final List<int[]> parts = new ArrayList<>();
+        long crc;
+
+        @Override
+        public void literal(ByteBuffer buffer, int offset, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            literals.write(bytes, 0, length);
+            literalLengths.add(length);
+            operations.add("literal " + length);
+            parts.add(new int[] {-1, length});
+        }
+
+        @Override
+        public void blocks(int firstBlock, int count) {
+            operations.add("blocks " + firstBlock + " " + count);
+            parts.add(new int[] {firstBlock, count});
+        }
+
+        // This method rebuilds the new version from the literals and the blocks of the previous version.
+        byte[] rebuild(byte[] previous, int blockSize) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] literalBytes = literals.toByteArray();
+            int literalPosition = 0;
+            for (int[] part : parts) {
+                if (part[0] < 0) {
+                    output.write(literalBytes, literalPosition, part[1]);
+                    literalPosition += part[1];
+                } else {
+                    output.write(previous, part[0] * blockSize, part[1] * blockSize);
+                }
+            }
+
+            return output.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.snappy.client.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Unit tests for FileChecksum.
+ * The checksums of a ByteBuffer range must match the ones of the same bytes in an array, and the buffer must be left as it was.
+ */
+public class FileChecksumTest {
+
+    @Test
+    public void updatesFromBuffersWithoutMovingThem() throws Exception {
+        byte[] data = new byte[4096];
+        new Random(3).nextBytes(data);
+
+        for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(data.clone()), ByteBuffer.allocateDirect(data.length).put(data)}) {
+            // The range starts before the position and ends after the limit, like the window of DeltaEncoder.
+            buffer.limit(3000).position(2500);
+
+            FileChecksum fromBuffer = new FileChecksum("SHA-256");
+            fromBuffer.update(buffer, 100, 1000);
+            fromBuffer.update(buffer, 1100, 2900);
+
+            assertEquals(2500, buffer.position());
+            assertEquals(3000, buffer.limit());
+
+            FileChecksum fromArray = new FileChecksum("SHA-256");
+            fromArray.update(data, 100, 3900);
+            assertEquals(fromArray.getCrc(), fromBuffer.getCrc());
+            assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(slice(data, 100, 3900))),
+                         fromBuffer.getStrongHash());
+        }
+    }
+
+    @Test
+    public void computesTheCrcOfAChunkWithoutMovingTheBuffer() {
+        byte[] data = new byte[1024];
+        new Random(4).nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length).put(data);
+        buffer.limit(10).position(5);
+
+        assertEquals(FileChecksum.crcOf(data, 200, 800), FileChecksum.crcOf(buffer, 200, 800));
+        assertEquals(5, buffer.position());
+        assertEquals(10, buffer.limit());
+    }
+
+    @Test
+    public void onlyComputesTheCrcWithoutAlgorithm() {
+        FileChecksum checksum = new FileChecksum(null);
+        checksum.update(new byte[] {1, 2, 3}, 0, 3);
+
+        assertEquals(FileChecksum.crcOf(new byte[] {1, 2, 3}, 0, 3), checksum.getCrc());
+        assertEquals(null, checksum.getStrongHash());
+        assertEquals(null, checksum.getStrongHashAlgorithm());
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+        return slice;
+    }
+}
@@ -0,0 +1,170 @@
+package com.snappy.client.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/*
+ * Unit tests for PathFilter.
+ */
+public class PathFilterTest {
+
+    @Test
+    public void traversesExcludedFolderWithIncludeBelow() {
+        PathFilter filter = new PathFilter(List.of("/var/cache/keep"), List.of("/var/cache"));
+
+        assertEquals(PathFilter.Decision.KEEP, filter.check(Paths.get("/var"), true, false));
+        assertEquals(PathFilter.Decision.TRAVERSE, filter.check(Paths.get("/var/cache"), true, false));
+        assertEquals(PathFilter.Decision.KEEP, filter.check(Paths.get("/var/cache/keep"), true, true));
+        assertEquals(PathFilter.Decision.KEEP, filter.check(Paths.get("/var/cache/keep/file"), false, false));
+        assertEquals(PathFilter.Decision.SKIP, filter.check(Paths.get("/var/cache/other"), true, true));
+        assertEquals(PathFilter.Decision.SKIP, filter.check(Paths.get("/var/cache/file"), false, true));
+    }
+
+    @Test
+    public void skipsExcludedFolderWithoutIncludeBelow() {
+        PathFilter filter = new PathFilter(List.of("/var/cache/keep"), List.of("/tmp"));
+
+        assertEquals(PathFilter.Decision.SKIP, filter.check(Paths.get("/tmp"), true, false));
+        assertEquals(PathFilter.Decision.KEEP, filter.check(Paths.get("/tmpfile"), false, false));
+    }
+
+    @Test
+    public void matchesNamesAndNameGlobsAnywhere() {
+        PathFilter filter = new PathFilter(List.of("important.o"), List.of("node_modules", "*.o"));
+
+        assertEquals(PathFilter.Decision.SKIP, filter.check(Paths.get("/home/user/project/node_modules"), true, false));
+        assertTrue(filter.isExcluded(Paths.get("/home/user/project/node_modules/package/index.js")));
+        assertTrue(filter.isExcluded(Paths.get("/home/user/project/main.o")));
+        assertFalse(filter.isExcluded(Paths.get("/home/user/project/main.c")));
+        assertFalse(filter.isExcluded(Paths.get("/home/user/project/important.o")));
+    }
+
+    @Test
+    public void matchesPathGlobsOnlyInTheirFolder() {
+        PathFilter filter = new PathFilter(List.of(), List.of("/var/log/*.gz", "build/*.class"));
+
+        assertTrue(filter.isExcluded(Paths.get("/var/log/syslog.1.gz")));
+        assertFalse(filter.isExcluded(Paths.get("/var/log/nginx/access.log.1.gz")));
+        assertFalse(filter.isExcluded(Paths.get("/var/log/syslog")));
+        assertTrue(filter.isExcluded(Paths.get("/home/user/project/build/Main.class")));
+        assertFalse(filter.isExcluded(Paths.get("/home/user/project/build/classes/Main.class")));
+    }
+
+    @Test
+    public void keepsEverythingWithoutExcludes() {
+        PathFilter filter = new PathFilter(List.of("/var"), List.of());
+
+        assertEquals(PathFilter.Decision.KEEP, filter.check(Paths.get("/tmp"), true, true));
+        assertFalse(filter.isExcluded(Paths.get("/tmp/file")));
+    }
+
+    @Test
+    public void isExcludedAgreesWithTheWalk() throws IOException {
+        Path root = Files.createTempDirectory("filter");
+        try {
+            for (String file : List.of("var/cache/apt/archive.deb",
+                                       "var/cache/keep/data",
+                                       "var/cache/keep/sub/data.tmp",
+                                       "var/cache/notes.keep",
+                                       "var/log/syslog.gz",
+                                       "var/log/nginx/access.gz",
+                                       "home/user/node_modules/package/index.js",
+                                       "home/user/main.o",
+                                       "home/user/main.c",
+                                       "tmp/socket")) {
+                Files.createDirectories(root.resolve(file).getParent());
+                Files.createFile(root.resolve(file));
+            }
+
+            PathFilter filter = new PathFilter(List.of(root + "/var/cache/keep", "*.keep"),
+                                               List.of(root + "/var/cache", root + "/tmp", root + "/var/log/*.gz", "node_modules", "*.o", "*.tmp"));
+
+            Set<String> walked = walk(root, root, filter, new TreeSet<>());
+            Set<String> checked = new TreeSet<>();
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(Files::isRegularFile)
+                     .filter(file -> !filter.isExcluded(file))
+                     .forEach(file -> checked.add(root.relativize(file).toString()));
+            }
+
+            assertEquals(Set.of("var/cache/keep/data", "var/cache/notes.keep", "var/log/nginx/access.gz", "home/user/main.c"), walked);
+            assertEquals(walked, checked);
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void walksSnapshotsWithTheRealPaths() throws IOException {
+        Path root = Files.createTempDirectory("filter");
+        try {
+            for (String file : List.of("cache/data", "cache/keep/data", "home/main.o", "home/main.c")) {
+                Files.createDirectories(root.resolve(file).getParent());
+                Files.createFile(root.resolve(file));
+            }
+
+            // The walked tree stands for a snapshot of /data, the rules only know the real paths.
+            PathFilter filter = new PathFilter(List.of("/data/cache/keep"), List.of("/data/cache", "*.o"));
+            Set<String> folders = new TreeSet<>();
+            Set<String> walked = walk(root, Paths.get("/data"), filter, folders);
+
+            assertEquals(Set.of("cache/keep/data", "home/main.c"), walked);
+            assertEquals(Set.of("cache true", "cache/keep false", "home false", " false"), folders);
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void skipsTheWholeWalkOfAnExcludedRoot() throws IOException {
+        Path root = Files.createTempDirectory("filter");
+        try {
+            Files.createFile(root.resolve("data"));
+
+            assertEquals(Set.of(), walk(root, Paths.get("/tmp/excluded"), new PathFilter(List.of(), List.of("/tmp")), new TreeSet<>()));
+        } finally {
+            delete(root);
+        }
+    }
+
+    // This method returns the files kept by PathFilter.Walker, and adds the folders left with their excluded state.
+    private static Set<String> walk(Path root, Path realRoot, PathFilter filter, Set<String> folders) throws IOException {
+        Set<String> kept = new TreeSet<>();
+
+        Files.walkFileTree(root, new PathFilter.Walker(filter, root, realRoot) {
+            @Override
+            protected void visitKeptFile(Path file, BasicFileAttributes attributes) {
+                kept.add(root.relativize(file).toString());
+            }
+
+            @Override
+            protected void leaveFolder(Path dir, boolean excluded) {
+                folders.add(root.relativize(dir) + " " + excluded);
+            }
+        });
+
+        return kept;
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.snappy.client.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/*
+ * Unit tests for BlockCache, in a temporary directory.
+ */
+public class BlockCacheTest {
+
+    @Test
+    public void evictsTheLeastRecentlyUsedChunks() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            BlockCache cache = new BlockCache(directory.toString(), 300);
+            cache.putChunk("snapshot", "/file", 1, 0, 10, chunk(0));
+            cache.putChunk("snapshot", "/file", 1, 1, 11, chunk(1));
+            cache.putChunk("snapshot", "/file", 1, 2, 12, chunk(2));
+            // The first chunk is now the most recently used one, the second is removed.
+            assertArrayEquals(chunk(0), cache.getChunk("snapshot", "/file", 1, 0, 10));
+            cache.putChunk("snapshot", "/file", 1, 3, 13, chunk(3));
+
+            assertArrayEquals(chunk(0), cache.getChunk("snapshot", "/file", 1, 0, 10));
+            assertNull(cache.getChunk("snapshot", "/file", 1, 1, 11));
+            assertArrayEquals(chunk(2), cache.getChunk("snapshot", "/file", 1, 2, 12));
+            assertArrayEquals(chunk(3), cache.getChunk("snapshot", "/file", 1, 3, 13));
+            assertEquals(3, entryCount(directory));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void keepsTheOrderBetweenRuns() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            BlockCache cache = new BlockCache(directory.toString(), 300);
+            cache.putChunk("snapshot", "/file", 1, 0, 10, chunk(0));
+            cache.putChunk("snapshot", "/file", 1, 1, 11, chunk(1));
+            cache.putChunk("snapshot", "/file", 1, 2, 12, chunk(2));
+
+            // The last modified times say that the first chunk has been used last, whatever the order of the directory.
+            long now = System.currentTimeMillis();
+            setLastModified(directory, now - 1000, now - 3000, now - 2000);
+
+            BlockCache reloaded = new BlockCache(directory.toString(), 300);
+            reloaded.putChunk("snapshot", "/file", 1, 3, 13, chunk(3));
+
+            assertNull(reloaded.getChunk("snapshot", "/file", 1, 1, 11));
+            assertArrayEquals(chunk(0), reloaded.getChunk("snapshot", "/file", 1, 0, 10));
+            assertArrayEquals(chunk(2), reloaded.getChunk("snapshot", "/file", 1, 2, 12));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void dropsChunksOfAnotherUpload() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            BlockCache cache = new BlockCache(directory.toString(), 300);
+            cache.putChunk("snapshot", "/file", 1, 0, 10, chunk(0));
+
+            assertNull(cache.getChunk("snapshot", "/file", 2, 0, 10));
+            assertNull(cache.getChunk("snapshot", "/file", 1, 0, 20));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void keepsTheCachePrivate() throws IOException {
+        Path parent = Files.createTempDirectory("cache");
+        try {
+            Path directory = parent.resolve("cache");
+            new BlockCache(directory.toString(), 300).putChunk("snapshot", "/file", 1, 0, 10, chunk(0));
+
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+            for (File entry : directory.toFile().listFiles()) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(entry.toPath())));
+            }
+
+            // A cache left readable by an older version is fixed on startup.
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxr-xr-x"));
+            for (File entry : directory.toFile().listFiles()) {
+                Files.setPosixFilePermissions(entry.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+            }
+            BlockCache reloaded = new BlockCache(directory.toString(), 300);
+
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+            for (File entry : directory.toFile().listFiles()) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(entry.toPath())));
+            }
+            assertArrayEquals(chunk(0), reloaded.getChunk("snapshot", "/file", 1, 0, 10));
+        } finally {
+            delete(parent);
+        }
+    }
+
+    // This method returns a chunk of 100 bytes that is different for every index.
+    private static byte[] chunk(int index) {
+        byte[] chunk = new byte[100];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) (index * 31 + i);
+        }
+        return chunk;
+    }
+
+    // This method sets the last modified times of the entries, in the order they have been added.
+    private static void setLastModified(Path directory, long... times) throws IOException {
+        File[] files = directory.toFile().listFiles();
+        for (File file : files) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            for (int index = 0; index < times.length; index++) {
+                if (Arrays.equals(content, chunk(index))) {
+                    file.setLastModified(times[index]);
+                }
+            }
+        }
+    }
+
+    private static long entryCount(Path directory) {
+        return directory.toFile().listFiles().length;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.snappy.client.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/*
+ * Unit tests for ChangeDetector, without btrfs: the parsing of find-new and the saved upload states.
+ */
+public class ChangeDetectorTest {
+    private static final LocalDate TODAY = LocalDate.of(2026, 10, 19);
+
+    @Test
+    public void parsesThePathOfFindNewLines() {
+        ChangeDetector detector = new ChangeDetector("unused");
+
+        assertEquals("etc/hosts", detector.parseFindNewLine("inode 257 file offset 0 len 4096 disk start 0 offset 0 gen 8 flags NONE etc/hosts"));
+        assertEquals("home/user/my file", detector.parseFindNewLine("inode 300 file offset 0 len 12 disk start 0 offset 0 gen 9 flags INLINE home/user/my file"));
+        assertEquals("a/b", detector.parseFindNewLine("inode 301 file offset 0 len 12 disk start 0 offset 0 gen 9 flags COMPRESS|PREALLOC a/b"));
+    }
+
+    @Test
+    public void ignoresOtherFindNewLines() {
+        ChangeDetector detector = new ChangeDetector("unused");
+
+        assertNull(detector.parseFindNewLine("transid marker was 1234"));
+        assertNull(detector.parseFindNewLine(""));
+        assertNull(detector.parseFindNewLine("inode 257 file offset 0 len 4096"));
+    }
+
+    @Test
+    public void savesAndReadsTheUploadStates() throws IOException {
+        Path file = Files.createTempFile("generations", ".yml");
+        try {
+            ChangeDetector detector = new ChangeDetector(file.toString());
+            Map<String, ChangeDetector.UploadState> states = new LinkedHashMap<String, ChangeDetector.UploadState>();
+            states.put("/", new ChangeDetector.UploadState(1234, "5a4b3c2d-0000-0000-0000-000000000001", TODAY));
+            states.put("/home", new ChangeDetector.UploadState(99, "5a4b3c2d-0000-0000-0000-000000000002", TODAY.minusDays(3)));
+            detector.writeGenerations(states);
+
+            Map<String, ChangeDetector.UploadState> read = detector.readGenerations();
+
+            assertEquals(states.keySet(), read.keySet());
+            assertEquals(1234, read.get("/").generation);
+            assertEquals("5a4b3c2d-0000-0000-0000-000000000002", read.get("/home").uuid);
+            assertEquals(TODAY.minusDays(3), read.get("/home").lastFullUpload);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void dropsTheStatesOfTheOldFormat() throws IOException {
+        Path file = Files.createTempFile("generations", ".yml");
+        try {
+            // The old files only had the generation of every subvolume.
+            Files.writeString(file, "/: 1234\n/home: 99\n");
+
+            assertTrue(new ChangeDetector(file.toString()).readGenerations().isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void dropsABrokenFile() throws IOException {
+        Path file = Files.createTempFile("generations", ".yml");
+        try {
+            Files.writeString(file, "/:\n  generation: [not a number\n");
+
+            assertTrue(new ChangeDetector(file.toString()).readGenerations().isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void readsNothingWithoutAFile() {
+        assertTrue(new ChangeDetector("/nonexistent/generations.yml").readGenerations().isEmpty());
+    }
+
+    @Test
+    public void decidesWhenAFullUploadIsNeeded() {
+        ChangeDetector.UploadState last = new ChangeDetector.UploadState(1234, "uuid-1", TODAY.minusDays(3));
+
+        assertTrue(ChangeDetector.needsFullUpload(null, "uuid-1", TODAY, 7));
+        assertFalse(ChangeDetector.needsFullUpload(last, "uuid-1", TODAY, 7));
+        // The subvolume has been created again, its old generations mean nothing.
+        assertTrue(ChangeDetector.needsFullUpload(last, "uuid-2", TODAY, 7));
+        assertTrue(ChangeDetector.needsFullUpload(last, "uuid-1", TODAY.plusDays(4), 7));
+        assertFalse(ChangeDetector.needsFullUpload(last, "uuid-1", TODAY.plusDays(3), 7));
+    }
+}
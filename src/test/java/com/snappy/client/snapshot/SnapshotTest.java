@@ -0,0 +1,30 @@
+package com.snappy.client.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/*
+ * Unit tests for the naming of the snapshots.
+ */
+public class SnapshotTest {
+
+    @Test
+    public void labelsTheRootSubvolume() {
+        assertEquals("root", Snapshot.getSubvolumeLabel("/"));
+    }
+
+    @Test
+    public void replacesSlashesWithDashes() {
+        assertEquals("home", Snapshot.getSubvolumeLabel("/home/"));
+        assertEquals("srv-data", Snapshot.getSubvolumeLabel("/srv//data"));
+    }
+
+    @Test
+    public void neverGivesTwoSubvolumesTheSameLabel() {
+        assertFalse(Snapshot.getSubvolumeLabel("/a/b").equals(Snapshot.getSubvolumeLabel("/a-b")));
+        assertFalse(Snapshot.getSubvolumeLabel("/a/-b").equals(Snapshot.getSubvolumeLabel("/a-/b")));
+        assertFalse(Snapshot.getSubvolumeLabel("/a%2Db").equals(Snapshot.getSubvolumeLabel("/a-b")));
+    }
+}